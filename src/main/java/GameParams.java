@@ -5,45 +5,109 @@ import java.io.Serializable;
  */
 public abstract class GameParams {
 
+    public static final int DEFAULT_MOVE_WINDOW = 4;
+
     private final HostPort hostPort;
 
-    protected GameParams(HostPort hostPort) {
+    private final ReplicationParams replicationParams;
+
+    private final int moveWindow;
+
+    protected GameParams(HostPort hostPort, ReplicationParams replicationParams, int moveWindow) {
         this.hostPort = hostPort;
+        this.replicationParams = replicationParams;
+        this.moveWindow = moveWindow;
     }
 
     public HostPort getHostPort() {
         return hostPort;
     }
 
+    /**
+     * @return how this peer replicates to the backup server, should it become the primary server
+     */
+    public ReplicationParams getReplicationParams() {
+        return replicationParams;
+    }
+
+    /**
+     * @return the number of moves this peer may have sent to the primary server without a reply yet
+     */
+    public int getMoveWindow() {
+        return moveWindow;
+    }
+
     public abstract boolean isPrimary();
 
+    /**
+     * Parse the move window, which must be a positive integer, or use the default if not given.
+     */
+    public static int parseMoveWindow(String param) {
+        if (param == null) {
+            return DEFAULT_MOVE_WINDOW;
+        }
+
+        try {
+            int moveWindow = Integer.parseInt(param);
+            if (moveWindow > 0) {
+                return moveWindow;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+
+        throw new IllegalArgumentException("Invalid format. Move window must be a positive integer.");
+    }
+
     /**
      * Implementation for Primary server.
      */
     public static class PrimaryParams extends GameParams {
 
+        /**
+         * Seconds the primary server accepts players for before starting the game.
+         */
+        public static final int DEFAULT_INITIAL_WAIT_SECONDS = 20;
+
         private final int boardSize;
 
         private final int treasureCount;
 
         private final int initialWaitSeconds;
 
+        /**
+         * Seed for the board layout, player placement and auth codes, or null for a random game.
+         */
+        private final Long seed;
+
         public PrimaryParams(HostPort hostPort,
                              int boardSize,
                              int treasureCount,
-                             int initialWaitSeconds) {
+                             int initialWaitSeconds,
+                             Long seed,
+                             ReplicationParams replicationParams,
+                             int moveWindow) {
 
-            super(hostPort);
+            super(hostPort, replicationParams, moveWindow);
             this.boardSize = boardSize;
             this.treasureCount = treasureCount;
             this.initialWaitSeconds = initialWaitSeconds;
+            this.seed = seed;
+        }
+
+        public PrimaryParams(HostPort hostPort,
+                             int boardSize,
+                             int treasureCount,
+                             int initialWaitSeconds) {
+
+            this(hostPort, boardSize, treasureCount, initialWaitSeconds, null, ReplicationParams.SYNC, DEFAULT_MOVE_WINDOW);
         }
 
         public PrimaryParams(HostPort hostPort,
                              int boardSize,
                              int treasureCount) {
 
-            this(hostPort, boardSize, treasureCount, 20);
+            this(hostPort, boardSize, treasureCount, DEFAULT_INITIAL_WAIT_SECONDS);
         }
 
         /**
@@ -66,7 +130,18 @@ public abstract class GameParams {
             return initialWaitSeconds;
         }
 
-        public static PrimaryParams parse(String param) {
+        /**
+         * @return whether the game should be fully deterministic for reproducible runs
+         */
+        public boolean isSeeded() {
+            return seed != null;
+        }
+
+        public Long getSeed() {
+            return seed;
+        }
+
+        public static PrimaryParams parse(String param, ReplicationParams replicationParams, int moveWindow) {
             try {
                 // split by ',' and parse the string
                 String[] primaryArgs = param.split(",");
@@ -74,9 +149,11 @@ public abstract class GameParams {
                 HostPort hostPort = HostPort.parse(hostPortString);
                 int boardSize = Integer.parseInt(primaryArgs[1]);
                 int treasureCount = Integer.parseInt(primaryArgs[2]);
-                return new PrimaryParams(hostPort, boardSize, treasureCount);
+                Long seed = primaryArgs.length > 3 ? Long.parseLong(primaryArgs[3]) : null;
+                return new PrimaryParams(hostPort, boardSize, treasureCount, DEFAULT_INITIAL_WAIT_SECONDS,
+                        seed, replicationParams, moveWindow);
             } catch (Exception e) {
-                throw new IllegalArgumentException("Invalid format. Expecting: host:port,board-size,treasure-count.", e);
+                throw new IllegalArgumentException("Invalid format. Expecting: host:port,board-size,treasure-count[,seed].", e);
             }
         }
     }
@@ -86,8 +163,19 @@ public abstract class GameParams {
      */
     public static class NonPrimaryParams extends GameParams {
 
+        private final boolean verifying;
+
+        public NonPrimaryParams(HostPort hostPort,
+                                ReplicationParams replicationParams,
+                                boolean verifying,
+                                int moveWindow) {
+
+            super(hostPort, replicationParams, moveWindow);
+            this.verifying = verifying;
+        }
+
         public NonPrimaryParams(HostPort hostPort) {
-            super(hostPort);
+            this(hostPort, ReplicationParams.SYNC, false, DEFAULT_MOVE_WINDOW);
         }
 
         @Override
@@ -95,16 +183,143 @@ public abstract class GameParams {
             return false;
         }
 
-        public static NonPrimaryParams parse(String param) {
+        /**
+         * @return whether the peer should verify the changes the primary server delivers to it
+         */
+        public boolean isVerifying() {
+            return verifying;
+        }
+
+        public static NonPrimaryParams parse(String param,
+                                             ReplicationParams replicationParams,
+                                             boolean verifying,
+                                             int moveWindow) {
             try {
                 HostPort hostPort = HostPort.parse(param);
-                return new NonPrimaryParams(hostPort);
+                return new NonPrimaryParams(hostPort, replicationParams, verifying, moveWindow);
             } catch (Exception e) {
                 throw new IllegalArgumentException("Invalid format. Expecting: host:port.", e);
             }
         }
     }
 
+    /**
+     * How the primary server replicates game state changes to the backup server.
+     */
+    public static class ReplicationParams {
+
+        public enum Mode {
+
+            /**
+             * Every move waits until the backup has applied it.
+             */
+            SYNC,
+
+            /**
+             * Changes are sent to the backup by a dedicated sender, and moves only wait when
+             * the backup falls more than the maximum lag behind.
+             */
+            BOUNDED_ASYNC,
+
+            /**
+             * Moves arriving within a short window are sent to the backup in one call, and
+             * all of them are replied to once the backup acknowledges it.
+             */
+            GROUP_COMMIT
+
+        }
+
+        public static final int DEFAULT_MAX_LAG = 64;
+
+        public static final int DEFAULT_GROUP_WINDOW_MILLIS = 5;
+
+        public static final int DEFAULT_GROUP_BATCH_SIZE = 32;
+
+        public static final ReplicationParams SYNC = new ReplicationParams(Mode.SYNC, 0, 0, 1);
+
+        private final Mode mode;
+
+        private final int maxLag;
+
+        private final int groupWindowMillis;
+
+        private final int groupBatchSize;
+
+        public ReplicationParams(Mode mode, int maxLag, int groupWindowMillis, int groupBatchSize) {
+            this.mode = mode;
+            this.maxLag = maxLag;
+            this.groupWindowMillis = groupWindowMillis;
+            this.groupBatchSize = groupBatchSize;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        /**
+         * @return the number of changes the backup may fall behind before moves wait for it
+         */
+        public int getMaxLag() {
+            return maxLag;
+        }
+
+        /**
+         * @return how long the first move of a group waits for others to join it
+         */
+        public int getGroupWindowMillis() {
+            return groupWindowMillis;
+        }
+
+        /**
+         * @return the number of moves that closes a group before its window ends
+         */
+        public int getGroupBatchSize() {
+            return groupBatchSize;
+        }
+
+        /**
+         * Parse a string in one of the following forms into a ReplicationParams instance:
+         * sync
+         * async
+         * async:max_lag
+         * group
+         * group:window_millis
+         * group:window_millis:batch_size
+         */
+        public static ReplicationParams parse(String param) {
+            if (param == null || param.equals("sync")) {
+                return SYNC;
+            }
+
+            String[] parts = param.split(":");
+            try {
+                if (parts[0].equals("async") && parts.length <= 2) {
+                    int maxLag = parts.length >= 2 ? Integer.parseInt(parts[1]) : DEFAULT_MAX_LAG;
+                    if (maxLag < 0) {
+                        throw new IllegalArgumentException("Invalid format. Max lag must not be negative.");
+                    }
+
+                    return new ReplicationParams(Mode.BOUNDED_ASYNC, maxLag, 0, 1);
+                }
+
+                if (parts[0].equals("group") && parts.length <= 3) {
+                    int windowMillis = parts.length >= 2 ? Integer.parseInt(parts[1]) : DEFAULT_GROUP_WINDOW_MILLIS;
+                    int batchSize = parts.length >= 3 ? Integer.parseInt(parts[2]) : DEFAULT_GROUP_BATCH_SIZE;
+                    if (windowMillis <= 0 || batchSize <= 0) {
+                        throw new IllegalArgumentException("Invalid format. Window and batch size must be positive.");
+                    }
+
+                    return new ReplicationParams(Mode.GROUP_COMMIT, 0, windowMillis, batchSize);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid format. Max lag, window and batch size must be integers.");
+            }
+
+            throw new IllegalArgumentException("Invalid format. Expecting: sync, async[:max-lag] " +
+                    "or group[:window-millis[:batch-size]].");
+        }
+    }
+
     /**
      * This class represents a host:port pair.
      */
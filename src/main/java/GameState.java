@@ -1,31 +1,251 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 public class GameState implements Serializable {
 
-    private final ServerConfig serverConfig = new ServerConfig();
+    private final ServerConfig serverConfig;
 
-    private final List<Player> playerList = new ArrayList<>();
+    private final PlayerTable players;
 
-    private final List<Treasure> treasureList = new ArrayList<>();
+    private final List<Treasure> treasureList;
 
     private final int boardSize;
 
-    private RunningState runningState = RunningState.ACCEPTING_PLAYERS;
+    private volatile RunningState runningState = RunningState.ACCEPTING_PLAYERS;
+
+    /**
+     * Number of claimed treasures dropped from {@link #treasureList} by {@link #compact()}.
+     * The claims themselves live on in the owners' treasure counts.
+     */
+    private int compactedTreasureCount;
+
+    /**
+     * Incremented as every committed change is published, so that copies of the state can be ordered.
+     * Only incremented while holding {@link #mutationLog}, see {@link #publish(long)}.
+     */
+    private final AtomicLong version;
+
+    /**
+     * Incremental hash of the content, see {@link StateHash}. Updated together with the version
+     * while holding {@link #mutationLog}, in version order, so that the hash at a given version
+     * does not depend on how concurrent moves interleaved. It is serialized, so a received copy
+     * carries the sender's hash.
+     */
+    private long stateHash;
+
+    /**
+     * How many changes can be staged ahead of the published version. Each committing thread
+     * stages one change at a time, so this only has to exceed the number of such threads.
+     */
+    private static final int STAGED_CAPACITY = 1024;
+
+    /**
+     * The version assigned to the last staged change. A change is assigned its version while
+     * holding the locks that order it against conflicting changes, then published after they are
+     * released, so this runs ahead of {@link #version} by the changes not yet published.
+     */
+    private transient AtomicLong stagedVersion;
+
+    /**
+     * Changes not yet published, at their version modulo {@link #STAGED_CAPACITY}. Staging a
+     * change does not take any lock; publishing takes the entries in version order and clears them.
+     */
+    private transient AtomicReferenceArray<StagedChange> stagedChanges;
+
+    /**
+     * Set while a thread is publishing the staged changes, so that the others do not wait for it.
+     */
+    private transient AtomicBoolean publishing;
+
+    /**
+     * Orders the changes of the running state, the server config and the player statuses and roles,
+     * which read the old value to hash the change.
+     */
+    private transient Object statusLock;
+
+    /**
+     * The Merkle tree has this many leaves. Players and treasures are spread over their half of
+     * the leaves by handle or index, and the first leaf also covers the running state and the
+     * server config. Each node holds the XOR of the {@link StateHash} keys below it, so the root
+     * equals {@link #stateHash} and a change is applied along one path in O(log n).
+     */
+    public static final int MERKLE_LEAF_COUNT = 256;
+
+    private static final int PLAYER_LEAF_COUNT = MERKLE_LEAF_COUNT / 2;
+
+    private static final int TREASURE_LEAF_COUNT = MERKLE_LEAF_COUNT - PLAYER_LEAF_COUNT;
+
+    private static final int SERVER_LEAF = 0;
+
+    /**
+     * Merkle tree in heap layout: node 1 is the root, node n has children 2n and 2n + 1, and
+     * leaf i is node {@link #MERKLE_LEAF_COUNT} + i. Guarded by {@link #mutationLog} like
+     * {@link #stateHash}, and derived from the content, so it is not serialized.
+     */
+    private transient long[] merkleTree;
+
+    /**
+     * The most recent changes, for replicating this state incrementally. Not serialized, so a
+     * received copy starts with an empty log at its current version.
+     */
+    private transient MutationLog mutationLog;
+
+    /**
+     * Side length, in cells, of the square regions the board is split into for locking.
+     */
+    private static final int REGION_SIZE = 8;
+
+    /**
+     * Moves hold the read lock plus the locks of the regions they touch, so that moves in
+     * different regions run in parallel. Operations on the whole state (adding players,
+     * initializing the board, serializing) hold the write lock to exclude all moves.
+     */
+    private transient ReadWriteLock stateLock;
+
+    private transient Object[] regionLocks;
+
+    private transient int regionsPerSide;
+
+    /**
+     * Whether each cell is currently taken by a player, indexed by {@link #cellIndex(int, int)}.
+     * This is a plain array rather than a bitset so that cells of different regions can be
+     * updated concurrently. It is derived from the player positions, so it is not serialized.
+     */
+    private transient boolean[] occupiedCells;
+
+    /**
+     * Per-cell index of the unclaimed treasures. For each cell, this holds the index in
+     * {@link #treasureList} of the first unclaimed treasure plus one (zero when there is none),
+     * and {@link #nextTreasures} chains the other unclaimed treasures sharing the same cell.
+     * Like {@link #occupiedCells}, it is derived state that is not serialized.
+     */
+    private transient int[] cellTreasureHeads;
+
+    private transient int[] nextTreasures;
+
+    private transient AtomicInteger remainingTreasureCount;
+
+    /**
+     * Whether this is a published snapshot, which must never be modified. This is not serialized,
+     * so the copy received by a remote peer is an ordinary mutable state.
+     */
+    private transient boolean frozen;
+
+    /**
+     * How many moves were predicted on top of this state's version by {@link #predict(List)},
+     * or 0 for a state made of committed changes only. Predictions never leave the client, so
+     * this is not serialized.
+     */
+    private transient int predictedMoveCount;
 
     public GameState(int boardSize) {
         this.boardSize = boardSize;
+        this.serverConfig = new ServerConfig();
+        this.players = new PlayerTable();
+        this.treasureList = new ArrayList<>();
+        this.version = new AtomicLong();
+        initTransientState();
+        this.stateHash = merkleTree[1];
+    }
+
+    /**
+     * Create a deep copy of the source state, which must be locked by the caller.
+     */
+    private GameState(GameState source, boolean frozen) {
+        this.boardSize = source.boardSize;
+        this.serverConfig = source.serverConfig.copy();
+        this.players = source.players.copy();
+        this.treasureList = new ArrayList<>(source.treasureList.size());
+        for (Treasure treasure : source.treasureList) {
+            treasureList.add(new Treasure(treasure.getTreasureId(),
+                    treasure.getPosX(),
+                    treasure.getPosY(),
+                    treasure.getAssignedPlayerId()));
+        }
+
+        this.runningState = source.runningState;
+        this.compactedTreasureCount = source.compactedTreasureCount;
+        this.version = new AtomicLong(source.version.get());
+        this.frozen = frozen;
+        if (!frozen) {
+            this.stateHash = source.getStateHash();
+            initTransientState();
+            return;
+        }
+
+        // a snapshot is never moved on, so it only needs the hashes, not the board-sized indexes
+        stateLock = new ReentrantReadWriteLock();
+        remainingTreasureCount = new AtomicInteger(source.remainingTreasureCount.get());
+        mutationLog = new MutationLog(version.get());
+        synchronized (source.mutationLog) {
+            this.stateHash = source.stateHash;
+            this.merkleTree = source.merkleTree.clone();
+        }
+    }
+
+    /**
+     * Take an immutable, consistent copy of this state. Snapshots can be read and serialized
+     * from any thread without locking, and any attempt to modify them throws
+     * {@link IllegalStateException}.
+     */
+    public GameState snapshot() {
+        stateLock.writeLock().lock();
+        try {
+            return new GameState(this, true);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Take a consistent, independent and modifiable copy of this state.
+     */
+    public GameState copy() {
+        stateLock.writeLock().lock();
+        try {
+            return new GameState(this, false);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    public boolean isSnapshot() {
+        return frozen;
+    }
+
+    public int getPredictedMoveCount() {
+        return predictedMoveCount;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("A game state snapshot cannot be modified");
+        }
     }
 
     public int getBoardSize() {
         return boardSize;
     }
 
+    /**
+     * @return a read-only list of views over the players, indexed by player handle
+     */
     public List<Player> getPlayerList() {
-        return playerList;
+        return players.asList();
     }
 
     public ServerConfig getServerConfig() {
@@ -41,7 +261,104 @@ public class GameState implements Serializable {
     }
 
     public void setRunningState(RunningState runningState) {
-        this.runningState = runningState;
+        checkMutable();
+        stateLock.readLock().lock();
+        try {
+            long changeVersion;
+            synchronized (statusLock) {
+                RunningState oldRunningState = this.runningState;
+                this.runningState = runningState;
+                changeVersion = stage(Mutation.createRunningState(runningState), SERVER_LEAF,
+                        StateHash.change(StateHash.RUNNING_STATE, 0, oldRunningState.ordinal(), runningState.ordinal()));
+            }
+
+            publish(changeVersion);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of changes committed to this state so far
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return the hash of the content of this state, equal for equal states whatever the order
+     * of the changes that led to them
+     */
+    public long getStateHash() {
+        synchronized (mutationLog) {
+            return stateHash;
+        }
+    }
+
+    /**
+     * Record the new primary server in the server config.
+     */
+    public void setPrimary(int playerId, IPeer peer) {
+        checkMutable();
+        stateLock.readLock().lock();
+        try {
+            long changeVersion;
+            synchronized (statusLock) {
+                int oldPlayerId = serverConfig.getPrimaryPlayerId();
+                serverConfig.setPrimary(playerId, peer);
+                changeVersion = stage(Mutation.createPrimary(playerId, peer), SERVER_LEAF,
+                        StateHash.change(StateHash.PRIMARY, 0, oldPlayerId, playerId));
+            }
+
+            publish(changeVersion);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Record the new backup server in the server config.
+     */
+    public void setBackup(int playerId, IPeer peer) {
+        checkMutable();
+        stateLock.readLock().lock();
+        try {
+            long changeVersion;
+            synchronized (statusLock) {
+                int oldPlayerId = serverConfig.getBackupPlayerId();
+                serverConfig.setBackup(playerId, peer);
+                changeVersion = stage(Mutation.createBackup(playerId, peer), SERVER_LEAF,
+                        StateHash.change(StateHash.BACKUP, 0, oldPlayerId, playerId));
+            }
+
+            publish(changeVersion);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Update the liveness and role of a player.
+     */
+    public void setPlayerStatus(int playerId, boolean alive, PeerRole role) {
+        checkMutable();
+        stateLock.readLock().lock();
+        try {
+            if (players.contains(playerId)) {
+                long changeVersion;
+                synchronized (statusLock) {
+                    int oldStatus = StateHash.status(players.isAlive(playerId), players.getRole(playerId));
+                    players.setAlive(playerId, alive);
+                    players.setRole(playerId, role);
+                    changeVersion = stage(Mutation.createPlayerStatus(playerId, alive, role), playerLeaf(playerId),
+                            StateHash.change(StateHash.STATUS, playerId, oldStatus, StateHash.status(alive, role)));
+                }
+
+                publish(changeVersion);
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
     }
 
     public boolean isActive() {
@@ -55,211 +372,840 @@ public class GameState implements Serializable {
      * @param treasureCount the total number of treasures that should be created.
      */
     public void initRandom(int treasureCount) {
-        List<Coordinate> blackList = new ArrayList<>();
+        initRandom(treasureCount, new Random());
+    }
 
-        int x;
-        int y;
-        Coordinate coordinate;
+    /**
+     * Initialize the game board using the given random generator. Treasures may share a cell,
+     * while every player is placed on a distinct cell without any treasure.
+     *
+     * @param treasureCount the total number of treasures that should be created.
+     * @throws IllegalStateException if there are not enough free cells for all the players
+     */
+    public void initRandom(int treasureCount, Random random) {
+        checkMutable();
+        stateLock.writeLock().lock();
+        try {
+            placeRandom(treasureCount, random);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private void placeRandom(int treasureCount, Random random) {
+        int cellCount = boardSize * boardSize;
+        BitSet takenCells = new BitSet(cellCount);
 
         //initialize M treasures and store in treasureList
         for (int i = 0; i < treasureCount; i++) {
-            coordinate = Coordinate.generateRandom(boardSize);
-            x = coordinate.getX();
-            y = coordinate.getY();
-            blackList.add(coordinate);
-            Treasure newTreasure = new Treasure("treasure-" + i, x, y, null);
+            int cell = random.nextInt(cellCount);
+            takenCells.set(cell);
+            Treasure newTreasure = new Treasure("treasure-" + i, cell % boardSize, cell / boardSize, Player.NO_PLAYER);
             treasureList.add(newTreasure);
         }
 
+        int playerCount = players.size();
+        int freeCount = cellCount - takenCells.cardinality();
+        if (playerCount > freeCount) {
+            throw new IllegalStateException("Not enough free cells to place " + playerCount + " players");
+        }
+
         //init player's position:
-        for (Player player : this.playerList) {
-            coordinate = Coordinate.generateRandom(boardSize);
-            for (int j = 0; j < blackList.size(); j++) {
-                if (coordinate.getX() == blackList.get(j).getX() &&
-                        coordinate.getY() == blackList.get(j).getY()) {
-                    //regen and restart if coord already exists
-                    j = 0;
-                    coordinate = Coordinate.generateRandom(boardSize);
-                }
+        if (freeCount - playerCount >= cellCount / 2) {
+            // sparse board: draws are taken over all the cells, and at least half of them stay
+            // free until the last player is placed, so each draw hits a free cell with probability
+            // of at least 1/2
+            for (int id = 0; id < playerCount; id++) {
+                int cell;
+                do {
+                    cell = random.nextInt(cellCount);
+                } while (takenCells.get(cell));
+
+                takenCells.set(cell);
+                players.setPosX(id, cell % boardSize);
+                players.setPosY(id, cell / boardSize);
+            }
+        } else {
+            // dense board: partially shuffle the free cells and take the first ones
+            int[] freeCells = new int[freeCount];
+            for (int cell = takenCells.nextClearBit(0), i = 0; i < freeCount; cell = takenCells.nextClearBit(cell + 1)) {
+                freeCells[i++] = cell;
+            }
+
+            for (int id = 0; id < playerCount; id++) {
+                int pick = id + random.nextInt(freeCount - id);
+                int cell = freeCells[pick];
+                freeCells[pick] = freeCells[id];
+                freeCells[id] = cell;
+
+                players.setPosX(id, cell % boardSize);
+                players.setPosY(id, cell / boardSize);
             }
-            player.setPosX(coordinate.getX());
-            player.setPosY(coordinate.getY());
-            blackList.add(coordinate);
+        }
+
+        rebuildOccupiedCells();
+        rebuildTreasureIndex();
+
+        // the random layout is not expressed as mutations, so copies behind this point need a full copy
+        synchronized (mutationLog) {
+            rebuildMerkleTree();
+            stateHash = merkleTree[1];
+            long newVersion = stagedVersion.incrementAndGet();
+            version.set(newVersion);
+            mutationLog.reset(newVersion);
         }
     }
 
     /**
      * Process the move and manipulate the game board.
      *
-     * @return false if the move is illegal
+     * @return true if the move is illegal
      */
     public boolean processMove(Move move, Player player) {
-        if (player == null) {
-            String playerId = move.getPlayerId();
-            for (Player p : getPlayerList()) {
-                if (p.getId().equals(playerId)) {
-                    player = p;
+        int id = player == null ? move.getPlayerId() : player.getId();
+        return applyMove(id, move.getDirection(), move.getSequence()) == MoveBatchResult.ILLEGAL;
+    }
+
+    /**
+     * Apply an ordered batch of moves, one after another, as {@link #processMove(Move, Player)}
+     * would, except that the moves of dead players are ignored. The whole batch holds the write
+     * lock, so no other change interleaves with it, the players' statuses cannot change during it,
+     * and the outcome is deterministic for a given starting state.
+     * <p>
+     * The write lock also stops every other move until the batch is done, which is why the primary
+     * server applies the moves it receives one by one under the region locks instead. Batches suit
+     * a state that one thread owns, like the copy a client predicts its own moves on.
+     */
+    public MoveBatchResult processMoves(List<Move> moves) {
+        checkMutable();
+        byte[] outcomes = new byte[moves.size()];
+        stateLock.writeLock().lock();
+        try {
+            for (int i = 0; i < outcomes.length; i++) {
+                Move move = moves.get(i);
+                int id = move.getPlayerId();
+                if (players.contains(id) && !players.isAlive(id)) {
+                    outcomes[i] = MoveBatchResult.IGNORED;
+                } else {
+                    outcomes[i] = applyMove(id, move.getDirection(), move.getSequence());
                 }
             }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
 
-            if (player == null) {
+        return new MoveBatchResult(outcomes);
+    }
+
+    /**
+     * Take a snapshot of this state with the given moves applied on top, as
+     * {@link #processMoves(List)} would, to show moves that are not committed yet. The moves are
+     * neither logged nor given versions: the prediction keeps the version of this state, so a
+     * state and its predictions are told apart by {@link #getPredictedMoveCount()}.
+     */
+    public GameState predict(List<Move> moves) {
+        GameState prediction = copy();
+        long baseVersion = prediction.getVersion();
+        prediction.processMoves(moves);
+
+        prediction.version.set(baseVersion);
+        prediction.stagedVersion.set(baseVersion);
+        prediction.mutationLog.reset(baseVersion);
+        prediction.predictedMoveCount = moves.size();
+        prediction.frozen = true;
+        return prediction;
+    }
+
+    /**
+     * @return one of the outcome codes in {@link MoveBatchResult}
+     */
+    private byte applyMove(int id, Move.Direction direction, long sequence) {
+        checkMutable();
+        stateLock.readLock().lock();
+        try {
+            if (!players.contains(id)) {
                 // player ID not found
-                return false;
+                return MoveBatchResult.IGNORED;
             }
-        }
 
-        boolean illegalMove = false;
-        switch (move.getDirection()) {
-            case S: {
-                if (player.getPosY() + 1 >= getBoardSize()) {
-                    // check for illegal move
-                    illegalMove = true;
-                    break;
+            while (true) {
+                int oldX = players.getPosX(id);
+                int oldY = players.getPosY(id);
+                int newX = oldX;
+                int newY = oldY;
+                switch (direction) {
+                    case S:
+                        newY++;
+                        break;
+                    case N:
+                        newY--;
+                        break;
+                    case E:
+                        newX++;
+                        break;
+                    case W:
+                        newX--;
+                        break;
+                    default:
+                        return MoveBatchResult.IGNORED;
                 }
 
-                for (Player onePlayer : getPlayerList()) {
-                    if (onePlayer.getPosX() == player.getPosX() &&
-                            onePlayer.getPosY() == player.getPosY() + 1) {
-                        // crashing
-                        illegalMove = true;
-                        break;
-                    }
+                if (newX < 0 || newY < 0 || newX >= boardSize || newY >= boardSize) {
+                    // moving off the board
+                    return MoveBatchResult.ILLEGAL;
                 }
 
-                if (!illegalMove) {
-                    player.setPosY(player.getPosY() + 1);
-                    obtainTreasures(player);
+                // lock the source and destination regions, always in the same order
+                int oldRegion = regionIndex(oldX, oldY);
+                int newRegion = regionIndex(newX, newY);
+                Object firstLock = regionLocks[Math.min(oldRegion, newRegion)];
+                Object secondLock = regionLocks[Math.max(oldRegion, newRegion)];
+
+                long changeVersion;
+                byte outcome;
+                synchronized (firstLock) {
+                    synchronized (secondLock) {
+                        if (players.getPosX(id) != oldX || players.getPosY(id) != oldY) {
+                            // a concurrent move of the same player got here first, so start over
+                            continue;
+                        }
+
+                        int newCell = cellIndex(newX, newY);
+                        if (occupiedCells[newCell]) {
+                            // crashing
+                            return MoveBatchResult.ILLEGAL;
+                        }
+
+                        int oldCell = cellIndex(oldX, oldY);
+                        occupiedCells[oldCell] = false;
+                        occupiedCells[newCell] = true;
+                        players.setPosX(id, newX);
+                        players.setPosY(id, newY);
+                        long hashChange = StateHash.change(StateHash.POSITION, id, oldCell, newCell);
+
+                        int treasureIndex = obtainTreasure(id, newCell);
+                        if (treasureIndex < 0) {
+                            changeVersion = stage(Mutation.createMove(id, direction, sequence), playerLeaf(id), hashChange);
+                            outcome = MoveBatchResult.MOVED;
+                        } else {
+                            int treasureCount = players.getTreasureCount(id);
+                            hashChange ^= StateHash.change(StateHash.TREASURE_COUNT, id, treasureCount - 1, treasureCount);
+                            changeVersion = stage(Mutation.createMove(id, direction, sequence),
+                                    new int[]{playerLeaf(id), treasureLeaf(treasureIndex)},
+                                    new long[]{hashChange, StateHash.change(StateHash.TREASURE_OWNER, treasureIndex, Player.NO_PLAYER, id)});
+                            outcome = MoveBatchResult.CLAIMED_TREASURE;
+                        }
+                    }
                 }
 
-                break;
+                // hashed and logged once the regions are released, so other moves need not wait for it
+                publish(changeVersion);
+                return outcome;
             }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
 
-            case N: {
-                if (player.getPosY() - 1 < 0) {
-                    // check for illegal move
-                    illegalMove = true;
-                    break;
-                }
+    /**
+     * Must be called while holding the lock of the cell's region.
+     *
+     * @return the index of the claimed treasure, or -1 if none was claimed
+     */
+    private int obtainTreasure(int playerId, int cell) {
+        int[] heads = cellTreasureHeads;
 
-                for (Player onePlayer : getPlayerList()) {
-                    if (onePlayer.getPosX() == player.getPosX() &&
-                            onePlayer.getPosY() == player.getPosY() - 1) {
-                        // crashing
-                        illegalMove = true;
-                        break;
-                    }
+        int head = heads[cell];
+        if (head == 0) {
+            return -1;
+        }
+
+        // claim the first unclaimed treasure on the cell
+        int treasureIndex = head - 1;
+        heads[cell] = nextTreasures[treasureIndex];
+        remainingTreasureCount.decrementAndGet();
+
+        treasureList.get(treasureIndex).setAssignedPlayerId(playerId);
+        players.setTreasureCount(playerId, players.getTreasureCount(playerId) + 1);
+        return treasureIndex;
+    }
+
+    /**
+     * @return the number of treasures that have not been claimed by any player
+     */
+    public int getRemainingTreasureCount() {
+        return remainingTreasureCount.get();
+    }
+
+    /**
+     * @return the number of claimed treasures still in the treasure list
+     */
+    public int getClaimedTreasureCount() {
+        return treasureList.size() - remainingTreasureCount.get();
+    }
+
+    /**
+     * @return the number of claimed treasures dropped from the treasure list so far
+     */
+    public int getCompactedTreasureCount() {
+        return compactedTreasureCount;
+    }
+
+    /**
+     * Drop the claimed treasures from the treasure list, keeping only their number. Claimed
+     * treasures never change again and are already counted in their owners' treasure counts,
+     * so they only cost wire and heap space.
+     * <p>
+     * Players are kept, dead or alive, because their handles index the other per-player tables.
+     * A dead player's slot is a few primitives holding its final score.
+     *
+     * @return the number of treasures dropped
+     */
+    public int compact() {
+        checkMutable();
+        stateLock.writeLock().lock();
+        try {
+            int removed = 0;
+            for (int i = 0; i < treasureList.size(); i++) {
+                Treasure treasure = treasureList.get(i);
+                if (treasure.isClaimed()) {
+                    removed++;
+                } else if (removed > 0) {
+                    treasureList.set(i - removed, treasure);
                 }
+            }
+
+            treasureList.subList(treasureList.size() - removed, treasureList.size()).clear();
+            compactedTreasureCount += removed;
+            rebuildTreasureIndex();
+
+            // the treasure indexes have shifted, so the hash is rebuilt rather than updated
+            synchronized (mutationLog) {
+                rebuildMerkleTree();
+                stateHash = merkleTree[1];
+            }
+
+            publish(stage(Mutation.createCompact(), SERVER_LEAF, 0));
+            return removed;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private int cellIndex(int x, int y) {
+        return y * boardSize + x;
+    }
+
+    private int regionIndex(int x, int y) {
+        return (y / REGION_SIZE) * regionsPerSide + x / REGION_SIZE;
+    }
+
+    /**
+     * Create the locks and derived indexes, which are not serialized.
+     */
+    private void initTransientState() {
+        stateLock = new ReentrantReadWriteLock();
+        regionsPerSide = (boardSize + REGION_SIZE - 1) / REGION_SIZE;
+        regionLocks = new Object[regionsPerSide * regionsPerSide];
+        for (int i = 0; i < regionLocks.length; i++) {
+            regionLocks[i] = new Object();
+        }
+
+        rebuildOccupiedCells();
+        rebuildTreasureIndex();
+        rebuildMerkleTree();
+        mutationLog = new MutationLog(version.get());
+        stagedVersion = new AtomicLong(version.get());
+        stagedChanges = new AtomicReferenceArray<>(STAGED_CAPACITY);
+        publishing = new AtomicBoolean();
+        statusLock = new Object();
+    }
+
+    private void rebuildOccupiedCells() {
+        occupiedCells = new boolean[boardSize * boardSize];
+        for (int i = 0; i < players.size(); i++) {
+            occupiedCells[cellIndex(players.getPosX(i), players.getPosY(i))] = true;
+        }
+    }
+
+    private void rebuildTreasureIndex() {
+        cellTreasureHeads = new int[boardSize * boardSize];
+        nextTreasures = new int[treasureList.size()];
+        int remaining = 0;
+
+        // iterate backwards so that each cell's chain keeps the list order
+        for (int i = treasureList.size() - 1; i >= 0; i--) {
+            Treasure treasure = treasureList.get(i);
+            if (treasure.isClaimed()) {
+                continue;
+            }
+
+            int cell = cellIndex(treasure.getPosX(), treasure.getPosY());
+            nextTreasures[i] = cellTreasureHeads[cell];
+            cellTreasureHeads[cell] = i + 1;
+            remaining++;
+        }
+
+        remainingTreasureCount = new AtomicInteger(remaining);
+    }
+
+    /**
+     * Hash the whole content from scratch into the Merkle tree. Only used when the content is
+     * not built by committed changes.
+     */
+    private void rebuildMerkleTree() {
+        long[] tree = new long[2 * MERKLE_LEAF_COUNT];
+        tree[MERKLE_LEAF_COUNT + SERVER_LEAF] = StateHash.key(StateHash.RUNNING_STATE, 0, runningState.ordinal())
+                ^ StateHash.key(StateHash.PRIMARY, 0, serverConfig.getPrimaryPlayerId())
+                ^ StateHash.key(StateHash.BACKUP, 0, serverConfig.getBackupPlayerId())
+                ^ StateHash.key(StateHash.COMPACTED_TREASURES, 0, compactedTreasureCount);
+
+        for (int id = 0; id < players.size(); id++) {
+            tree[MERKLE_LEAF_COUNT + playerLeaf(id)] ^= hashPlayer(id);
+        }
+
+        for (int i = 0; i < treasureList.size(); i++) {
+            tree[MERKLE_LEAF_COUNT + treasureLeaf(i)] ^= hashTreasure(i);
+        }
 
-                if (!illegalMove) {
-                    player.setPosY(player.getPosY() - 1);
-                    obtainTreasures(player);
+        for (int node = MERKLE_LEAF_COUNT - 1; node > 0; node--) {
+            tree[node] = tree[2 * node] ^ tree[2 * node + 1];
+        }
+
+        merkleTree = tree;
+    }
+
+    private long hashPlayer(int id) {
+        return StateHash.key(StateHash.POSITION, id, cellIndex(players.getPosX(id), players.getPosY(id)))
+                ^ StateHash.key(StateHash.TREASURE_COUNT, id, players.getTreasureCount(id))
+                ^ StateHash.key(StateHash.STATUS, id, StateHash.status(players.isAlive(id), players.getRole(id)));
+    }
+
+    private long hashTreasure(int index) {
+        Treasure treasure = treasureList.get(index);
+        return StateHash.key(StateHash.TREASURE_CELL, index, cellIndex(treasure.getPosX(), treasure.getPosY()))
+                ^ StateHash.key(StateHash.TREASURE_OWNER, index, treasure.getAssignedPlayerId());
+    }
+
+    private static int playerLeaf(int id) {
+        return id % PLAYER_LEAF_COUNT;
+    }
+
+    private static int treasureLeaf(int index) {
+        return PLAYER_LEAF_COUNT + index % TREASURE_LEAF_COUNT;
+    }
+
+    /**
+     * @return the hashes of the given Merkle tree nodes, see {@link #MERKLE_LEAF_COUNT}
+     */
+    public long[] getMerkleNodes(int[] nodes) {
+        long[] hashes = new long[nodes.length];
+        synchronized (mutationLog) {
+            for (int i = 0; i < nodes.length; i++) {
+                hashes[i] = merkleTree[nodes[i]];
+            }
+        }
+
+        return hashes;
+    }
+
+    /**
+     * Collect the content of the given Merkle tree leaves, for repairing another copy.
+     */
+    public StateRepair createRepair(int[] leaves) {
+        boolean[] selected = new boolean[MERKLE_LEAF_COUNT];
+        for (int leaf : leaves) {
+            selected[leaf] = true;
+        }
+
+        stateLock.writeLock().lock();
+        try {
+            int playerCount = 0;
+            for (int id = 0; id < players.size(); id++) {
+                if (selected[playerLeaf(id)]) {
+                    playerCount++;
                 }
-                break;
             }
 
-            case E: {
-                if (player.getPosX() + 1 >= getBoardSize()) {
-                    // check for illegal move
-                    illegalMove = true;
-                    break;
+            int[] playerIds = new int[playerCount];
+            int[] posX = new int[playerCount];
+            int[] posY = new int[playerCount];
+            int[] treasureCounts = new int[playerCount];
+            boolean[] alive = new boolean[playerCount];
+            PeerRole[] roles = new PeerRole[playerCount];
+            int index = 0;
+            for (int id = 0; id < players.size(); id++) {
+                if (selected[playerLeaf(id)]) {
+                    playerIds[index] = id;
+                    posX[index] = players.getPosX(id);
+                    posY[index] = players.getPosY(id);
+                    treasureCounts[index] = players.getTreasureCount(id);
+                    alive[index] = players.isAlive(id);
+                    roles[index] = players.getRole(id);
+                    index++;
                 }
+            }
 
-                for (Player onePlayer : getPlayerList()) {
-                    if (onePlayer.getPosX() == player.getPosX() + 1 &&
-                            onePlayer.getPosY() == player.getPosY()) {
-                        // crashing
-                        illegalMove = true;
-                        break;
-                    }
+            int treasureCount = 0;
+            for (int i = 0; i < treasureList.size(); i++) {
+                if (selected[treasureLeaf(i)]) {
+                    treasureCount++;
                 }
+            }
 
-                if (!illegalMove) {
-                    player.setPosX(player.getPosX() + 1);
-                    obtainTreasures(player);
+            int[] treasureIndexes = new int[treasureCount];
+            int[] treasureOwners = new int[treasureCount];
+            index = 0;
+            for (int i = 0; i < treasureList.size(); i++) {
+                if (selected[treasureLeaf(i)]) {
+                    treasureIndexes[index] = i;
+                    treasureOwners[index] = treasureList.get(i).getAssignedPlayerId();
+                    index++;
                 }
+            }
 
-                break;
+            boolean serverLeaf = selected[SERVER_LEAF];
+            synchronized (mutationLog) {
+                return new StateRepair(getVersion(), stateHash, players.size(), treasureList.size(),
+                        playerIds, posX, posY, treasureCounts, alive, roles, treasureIndexes, treasureOwners,
+                        serverLeaf ? runningState : null, serverLeaf ? serverConfig.copy() : null);
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Overwrite the players and treasures of the repaired leaves, and take the version and hash of
+     * the repairing copy.
+     *
+     * @return false if the repair does not make this state equal to the repairing copy, e.g. because
+     * other leaves differ too; this state must then be replaced by a full copy
+     */
+    public boolean applyRepair(StateRepair repair) {
+        checkMutable();
+        stateLock.writeLock().lock();
+        try {
+            if (repair.getTreasureCount() != treasureList.size() || repair.getPlayerCount() < players.size()) {
+                return false;
+            }
+
+            while (players.size() < repair.getPlayerCount()) {
+                players.add(PeerRole.NON_SERVER);
+            }
+
+            int[] playerIds = repair.getPlayerIds();
+            for (int i = 0; i < playerIds.length; i++) {
+                int id = playerIds[i];
+                players.setPosX(id, repair.getPosX()[i]);
+                players.setPosY(id, repair.getPosY()[i]);
+                players.setTreasureCount(id, repair.getTreasureCounts()[i]);
+                players.setAlive(id, repair.getAlive()[i]);
+                players.setRole(id, repair.getRoles()[i]);
+            }
+
+            int[] treasureIndexes = repair.getTreasureIndexes();
+            for (int i = 0; i < treasureIndexes.length; i++) {
+                treasureList.get(treasureIndexes[i]).setAssignedPlayerId(repair.getTreasureOwners()[i]);
+            }
+
+            if (repair.getServerConfig() != null) {
+                ServerConfig config = repair.getServerConfig();
+                runningState = repair.getRunningState();
+                serverConfig.setPrimary(config.getPrimaryPlayerId(), config.getPrimaryServer());
+                serverConfig.setBackup(config.getBackupPlayerId(), config.getBackupServer());
             }
 
-            case W: {
-                if (player.getPosX() - 1 < 0) {//check for illegal move
-                    illegalMove = true;
-                    break;
+            rebuildOccupiedCells();
+            rebuildTreasureIndex();
+            synchronized (mutationLog) {
+                rebuildMerkleTree();
+                stateHash = merkleTree[1];
+                if (stateHash != repair.getStateHash()) {
+                    return false;
                 }
-                for (Player onePlayer : getPlayerList()) {
-                    if (onePlayer.getPosX() == player.getPosX() - 1 &&
-                            onePlayer.getPosY() == player.getPosY()) {
-                        illegalMove = true;
-                        break;
+
+                version.set(repair.getVersion());
+                stagedVersion.set(repair.getVersion());
+                mutationLog.reset(repair.getVersion());
+                return true;
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a new player to the game, assigning it the next free handle.
+     */
+    public Player addPlayer(PeerRole role) {
+        checkMutable();
+        stateLock.writeLock().lock();
+        try {
+            int id = players.add(role);
+            int cell = cellIndex(players.getPosX(id), players.getPosY(id));
+            occupiedCells[cell] = true;
+            publish(stage(Mutation.createAddPlayer(id, role), playerLeaf(id),
+                    StateHash.key(StateHash.POSITION, id, cell)
+                            ^ StateHash.key(StateHash.TREASURE_COUNT, id, 0)
+                            ^ StateHash.key(StateHash.STATUS, id, StateHash.status(true, role))));
+            return new Player(players, id);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search for a player from ID
+     */
+    public Player searchById(int playerId) {
+        if (!players.contains(playerId)) {
+            return null;
+        }
+
+        return new Player(players, playerId);
+    }
+
+    /**
+     * Give the role (primary or backup) to one player, demoting any other holder of it.
+     */
+    public void setExclusiveRole(int playerId, PeerRole role) {
+        checkMutable();
+        stateLock.readLock().lock();
+        try {
+            if (players.contains(playerId)) {
+                long changeVersion;
+                synchronized (statusLock) {
+                    // role changes are rare, so hashing the demotions by scanning the players is fine
+                    int[] leaves = new int[players.size()];
+                    long[] hashChanges = new long[players.size()];
+                    int changed = 0;
+                    for (int id = 0; id < players.size(); id++) {
+                        if (id != playerId && players.getRole(id) == role) {
+                            boolean alive = players.isAlive(id);
+                            leaves[changed] = playerLeaf(id);
+                            hashChanges[changed++] = StateHash.change(StateHash.STATUS, id,
+                                    StateHash.status(alive, role), StateHash.status(alive, PeerRole.NON_SERVER));
+                        }
                     }
+
+                    boolean alive = players.isAlive(playerId);
+                    leaves[changed] = playerLeaf(playerId);
+                    hashChanges[changed++] = StateHash.change(StateHash.STATUS, playerId,
+                            StateHash.status(alive, players.getRole(playerId)), StateHash.status(alive, role));
+
+                    players.setExclusiveRole(playerId, role);
+                    changeVersion = stage(Mutation.createExclusiveRole(playerId, role),
+                            Arrays.copyOf(leaves, changed), Arrays.copyOf(hashChanges, changed));
                 }
-                if (!illegalMove) {
-                    player.setPosX(player.getPosX() - 1);
-                    obtainTreasures(player);
-                }
-                break;
+
+                publish(changeVersion);
             }
+        } finally {
+            stateLock.readLock().unlock();
         }
+    }
 
-        return illegalMove;
+    public int getAliveCount() {
+        return players.countAlive();
     }
 
-    private void obtainTreasures(Player player) {
-        List<Treasure> treasureList = getTreasureList();
+    /**
+     * Assign the next version to a change that has just been made, and stage it to be published
+     * by {@link #publish(long)}. Must be called while holding the locks that order the change
+     * against conflicting ones, so that the versions follow the order the changes were made in.
+     *
+     * @param leaf       the Merkle tree leaf covering the changed content
+     * @param hashChange what the change XORs into the hash, see {@link StateHash}
+     * @return the version of the change
+     */
+    private long stage(Mutation mutation, int leaf, long hashChange) {
+        return stage(mutation, new int[]{leaf}, new long[]{hashChange});
+    }
 
-        // search for the treasure
-        for (Treasure oneTreasure : treasureList) {
-            if (oneTreasure.getAssignedPlayerId() == null &&
-                    oneTreasure.getPosX() == player.getPosX() &&
-                    oneTreasure.getPosY() == player.getPosY()) {
-                oneTreasure.setAssignedPlayerId(player.getId());
-                player.setTreasureCount(player.getTreasureCount() + 1);
-                break;
-            }
+    /**
+     * Like {@link #stage(Mutation, int, long)}, for a change covered by several leaves.
+     */
+    private long stage(Mutation mutation, int[] leaves, long[] hashChanges) {
+        long changeVersion = stagedVersion.incrementAndGet();
+        mutation.setVersion(changeVersion);
+        while (changeVersion - version.get() > STAGED_CAPACITY) {
+            // the entry for this version is still taken by an unpublished one
+            publishStaged();
+            Thread.yield();
         }
+
+        stagedChanges.set((int) (changeVersion % STAGED_CAPACITY), new StagedChange(mutation, leaves, hashChanges));
+        return changeVersion;
     }
 
     /**
-     * Search for a player from ID
+     * Wait until the staged change of the given version is published: hashed, and logged with
+     * the hash of the state at its version. Must be called after releasing the locks held to
+     * stage it, but before releasing the state lock, so that whole-state operations never see
+     * a staged change.
      */
-    public Player searchById(String playerId) {
-        for (Player onePlayer : getPlayerList()) {
-            if (playerId.equals(onePlayer.getId())) {
-                return onePlayer;
+    private void publish(long changeVersion) {
+        while (version.get() < changeVersion) {
+            publishStaged();
+            if (version.get() < changeVersion) {
+                // another thread is publishing, or an earlier change is not staged yet
+                Thread.yield();
             }
         }
-
-        return null;
     }
 
-    private static class Coordinate {
+    /**
+     * Publish the staged changes that directly follow the published version, unless another thread
+     * is doing so. Committing threads thus hash and log each other's changes in batches, in
+     * version order, instead of each taking the log for its own change.
+     */
+    private void publishStaged() {
+        if (!publishing.compareAndSet(false, true)) {
+            return;
+        }
 
-        private int x;
+        try {
+            synchronized (mutationLog) {
+                long nextVersion = version.get() + 1;
+                int index = (int) (nextVersion % STAGED_CAPACITY);
+                StagedChange change;
+                while ((change = stagedChanges.get(index)) != null) {
+                    stagedChanges.set(index, null);
+                    for (int i = 0; i < change.leaves.length; i++) {
+                        updateHash(change.leaves[i], change.hashChanges[i]);
+                    }
 
-        private int y;
+                    change.mutation.setStateHash(stateHash);
+                    mutationLog.append(change.mutation);
+                    version.set(nextVersion);
 
-        public int getX() {
-            return x;
+                    nextVersion++;
+                    index = (int) (nextVersion % STAGED_CAPACITY);
+                }
+            }
+        } finally {
+            publishing.set(false);
         }
+    }
 
-        public void setX(int x) {
-            this.x = x;
+    /**
+     * XOR a change into the hash and along the Merkle tree path of its leaf.
+     * Must be called while holding {@link #mutationLog}.
+     */
+    private void updateHash(int leaf, long hashChange) {
+        stateHash ^= hashChange;
+        for (int node = MERKLE_LEAF_COUNT + leaf; node > 0; node >>= 1) {
+            merkleTree[node] ^= hashChange;
         }
+    }
 
-        public int getY() {
-            return y;
+    /**
+     * @return the changes committed after the given version, in order, or null if they are
+     * no longer all retained and a full copy of the state is needed instead
+     */
+    public List<Mutation> getMutationsSince(long fromVersion) {
+        synchronized (mutationLog) {
+            return mutationLog.since(fromVersion);
         }
+    }
 
-        public void setY(int y) {
-            this.y = y;
+    /**
+     * Apply a change committed on another copy of this state, e.g. by the primary server.
+     *
+     * @return false if the change does not directly follow the current version of this state,
+     * cannot be applied to it, or leads to a different hash than on the other copy, in which
+     * case a full copy of the state is needed
+     */
+    public boolean apply(Mutation mutation) {
+        checkMutable();
+        if (mutation.getVersion() != getVersion() + 1) {
+            return false;
         }
 
-        public static Coordinate generateRandom(int limit) {
-            Coordinate cord = new Coordinate();
-            Random rand = new Random();
-            cord.setX(rand.nextInt(limit));
-            cord.setY(rand.nextInt(limit));
-            return cord;
+        int playerId = mutation.getPlayerId();
+        switch (mutation.getType()) {
+            case MOVE: {
+                byte outcome = applyMove(playerId, mutation.getDirection(), mutation.getMoveSequence());
+                if (outcome != MoveBatchResult.MOVED && outcome != MoveBatchResult.CLAIMED_TREASURE) {
+                    return false;
+                }
+                break;
+            }
+            case ADD_PLAYER: {
+                if (playerId != players.size()) {
+                    return false;
+                }
+                addPlayer(mutation.getRole());
+                break;
+            }
+            case PLAYER_STATUS: {
+                setPlayerStatus(playerId, mutation.isAlive(), mutation.getRole());
+                break;
+            }
+            case EXCLUSIVE_ROLE: {
+                setExclusiveRole(playerId, mutation.getRole());
+                break;
+            }
+            case PRIMARY: {
+                setPrimary(playerId, mutation.getPeer());
+                break;
+            }
+            case BACKUP: {
+                setBackup(playerId, mutation.getPeer());
+                break;
+            }
+            case RUNNING_STATE: {
+                setRunningState(mutation.getRunningState());
+                break;
+            }
+            case COMPACT: {
+                compact();
+                break;
+            }
+        }
+
+        return getVersion() == mutation.getVersion() && getStateHash() == mutation.getStateHash();
+    }
+
+    /**
+     * Serialize while excluding concurrent moves, so that the copy is consistent.
+     * Snapshots are never modified, so they are serialized without locking.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (frozen) {
+            out.defaultWriteObject();
+            return;
+        }
+
+        stateLock.writeLock().lock();
+        try {
+            out.defaultWriteObject();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initTransientState();
+    }
+
+    /**
+     * A change that has been assigned a version, waiting to be published.
+     */
+    private static class StagedChange {
+
+        private final Mutation mutation;
+
+        private final int[] leaves;
+
+        private final long[] hashChanges;
+
+        StagedChange(Mutation mutation, int[] leaves, long[] hashChanges) {
+            this.mutation = mutation;
+            this.leaves = leaves;
+            this.hashChanges = hashChanges;
         }
     }
 
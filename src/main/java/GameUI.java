@@ -302,7 +302,18 @@ public class GameUI {
 
         public final IntegerProperty boardSize = new SimpleIntegerProperty(this, "boardSize", 0);
 
-        private final Map<String, PlayerModel> playerIdModelMapping = new HashMap<>();
+        private final Map<Integer, PlayerModel> playerIdModelMapping = new HashMap<>();
+
+        /**
+         * Version of the last rendered game state, to skip rendering the same state twice.
+         */
+        private long renderedVersion = -1;
+
+        /**
+         * Number of predicted moves in the last rendered game state, as a prediction shares the
+         * version of the state it was made on.
+         */
+        private int renderedPredictedMoveCount;
 
         private IntegerProperty[][] treasureCounts;
 
@@ -330,57 +341,65 @@ public class GameUI {
 
 
         public void updateGameState(GameState gameState) {
-            synchronized (gameState) {
-                List<Player> playerList = gameState.getPlayerList();
-                List<Treasure> treasureList = gameState.getTreasureList();
-
-                playerList.forEach(player -> {
-                    PlayerModel playerModel = playerIdModelMapping.get(player.getId());
-                    if (playerModel != null) {
-                        playerModel.copyFrom(player);
-
-                        // updating the role
-                        if (uiController.game.isSelf(player.getId())) {
-                            role.set(player.getRole());
-
-                            String playerId = player.getId();
-                            playerName.set(playerId);
-                            setAppBadge(playerId);
-                        }
+            if (gameState.getVersion() == renderedVersion
+                    && gameState.getPredictedMoveCount() == renderedPredictedMoveCount) {
+                return;
+            }
 
-                    } else {
-                        playerModel = new PlayerModel(this);
-                        playerModel.copyFrom(player);
-                        players.add(playerModel);
-                        playerIdModelMapping.put(player.getId(), playerModel);
-                    }
-                });
+            renderedVersion = gameState.getVersion();
+            renderedPredictedMoveCount = gameState.getPredictedMoveCount();
+
+            // every update carries its own copy of the game state that is never modified afterwards,
+            // so it is read without locking
+            List<Player> playerList = gameState.getPlayerList();
+            List<Treasure> treasureList = gameState.getTreasureList();
+
+            playerList.forEach(player -> {
+                PlayerModel playerModel = playerIdModelMapping.get(player.getId());
+                if (playerModel != null) {
+                    playerModel.copyFrom(player);
 
-                int boardSize = this.boardSize.get();
-                int[][] treasureCells = new int[boardSize][boardSize];
-                for (int i = 0; i < boardSize; ++i) {
-                    for (int j = 0; j < boardSize; ++j) {
-                        treasureCells[i][j] = 0;
+                    // updating the role
+                    if (uiController.game.isSelf(player.getId())) {
+                        role.set(player.getRole());
+
+                        String name = Player.getDisplayName(player.getId());
+                        playerName.set(name);
+                        setAppBadge(name);
                     }
+
+                } else {
+                    playerModel = new PlayerModel(this);
+                    playerModel.copyFrom(player);
+                    players.add(playerModel);
+                    playerIdModelMapping.put(player.getId(), playerModel);
                 }
+            });
 
-                treasureList.forEach(treasure -> {
-                    if (treasure.getAssignedPlayerId() == null) {
-                        treasureCells[treasure.getPosX()][treasure.getPosY()]++;
-                    }
-                });
+            int boardSize = this.boardSize.get();
+            int[][] treasureCells = new int[boardSize][boardSize];
+            for (int i = 0; i < boardSize; ++i) {
+                for (int j = 0; j < boardSize; ++j) {
+                    treasureCells[i][j] = 0;
+                }
+            }
 
-                for (int i = 0; i < boardSize; ++i) {
-                    for (int j = 0; j < boardSize; ++j) {
-                        treasureCounts[i][j].set(treasureCells[i][j]);
-                    }
+            treasureList.forEach(treasure -> {
+                if (!treasure.isClaimed()) {
+                    treasureCells[treasure.getPosX()][treasure.getPosY()]++;
                 }
+            });
 
-                runningState.set(gameState.getRunningState());
+            for (int i = 0; i < boardSize; ++i) {
+                for (int j = 0; j < boardSize; ++j) {
+                    treasureCounts[i][j].set(treasureCells[i][j]);
+                }
             }
+
+            runningState.set(gameState.getRunningState());
         }
 
-        boolean isSelf(String playerId) {
+        boolean isSelf(int playerId) {
             return uiController.game.isSelf(playerId);
         }
     }
@@ -434,7 +453,7 @@ public class GameUI {
         }
 
         public void copyFrom(Player player) {
-            setName(player.getId());
+            setName(Player.getDisplayName(player.getId()));
             setXPos(player.getPosX());
             setYPos(player.getPosY());
             setAlive(player.isAlive());
@@ -850,7 +869,12 @@ public class GameUI {
 
         private IntTextField treasureCountText = new IntTextField(5, 50, 10);
 
-        private IntTextField waitSecondsText = new IntTextField(5, 60, 20);
+        private IntTextField waitSecondsText = new IntTextField(5, 60, GameParams.PrimaryParams.DEFAULT_INITIAL_WAIT_SECONDS);
+
+        /**
+         * Seed for a reproducible game, left empty for a random one.
+         */
+        private TextField seedText = new TextField();
 
         private TextField connectHostText = new TextField("localhost");
 
@@ -867,11 +891,15 @@ public class GameUI {
             startAsPrimary.setStyle("-fx-base: lightsalmon;");
             startAsPrimary.setOnAction(e -> {
                 GameParams.HostPort hostPort = new GameParams.HostPort("0.0.0.0", listenPortText.getValue());
+                String seed = seedText.getText();
                 GameParams.PrimaryParams params = new GameParams.PrimaryParams(
                         hostPort,
                         boardSizeText.getValue(),
                         treasureCountText.getValue(),
-                        waitSecondsText.getValue()
+                        waitSecondsText.getValue(),
+                        seed.isEmpty() ? null : Long.parseLong(seed),
+                        GameParams.ReplicationParams.SYNC,
+                        GameParams.DEFAULT_MOVE_WINDOW
                 );
                 gameStartHandler.handle(new PeerStartEvent(params));
             });
@@ -885,6 +913,8 @@ public class GameUI {
                     treasureCountText,
                     new Label("Seconds Before Start (5-60):"),
                     waitSecondsText,
+                    new Label("Seed (empty for a random game):"),
+                    seedText,
                     startAsPrimary
             );
 
@@ -895,13 +925,27 @@ public class GameUI {
             VBox.setMargin(boardSizeText, new Insets(0, 0, 10, 0));
             VBox.setMargin(treasureCountText, new Insets(0, 0, 10, 0));
             VBox.setMargin(waitSecondsText, new Insets(0, 0, 10, 0));
+            VBox.setMargin(seedText, new Insets(0, 0, 10, 0));
             VBox.setMargin(startAsPrimary, new Insets(5, 0, 5, 0));
             listenPortText.setMaxWidth(Double.MAX_VALUE);
             boardSizeText.setMaxWidth(Double.MAX_VALUE);
             treasureCountText.setMaxWidth(Double.MAX_VALUE);
             waitSecondsText.setMaxWidth(Double.MAX_VALUE);
+            seedText.setMaxWidth(Double.MAX_VALUE);
             startAsPrimary.setMaxWidth(Double.MAX_VALUE);
 
+            seedText.textProperty().addListener((ov, oldValue, newValue) -> {
+                if (newValue == null || newValue.isEmpty()) {
+                    return;
+                }
+
+                try {
+                    Long.parseLong(newValue);
+                } catch (NumberFormatException e) {
+                    seedText.setText(oldValue);
+                }
+            });
+
             TitledPane primaryPane = new TitledPane("Start as Primary", box);
             primaryPane.setCollapsible(false);
 
@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 
 public interface IPeer extends Remote {
@@ -12,6 +13,12 @@ public interface IPeer extends Remote {
      */
     void callClientGameStarted(GameState gameState) throws RemoteException;
 
+    /**
+     * Called by the Primary server to the peers to push the changes committed since the last
+     * update, or the full game state if they are too many. Pings are only a fallback to this.
+     */
+    void callClientUpdate(IReply.PingReply update) throws RemoteException;
+
 
     /*============ PRIMARY SERVER METHODS ===========*/
 
@@ -21,19 +28,71 @@ public interface IPeer extends Remote {
     IReply.JoinReply callPrimaryJoin(IPeer peer) throws RemoteException;
 
     /**
-     * Called by the peers to the Primary server to make a game move
+     * Called by the peers to the Primary server to make a game move. A peer numbers its moves
+     * from 0 for each primary server, and they are applied in that order whatever order they
+     * arrive in. The reply carries the changes since knownVersion, the version of the game
+     * state the peer holds (-1 if none), or the full game state if the peer is too far behind.
      */
     IReply.MoveReply callPrimaryMove(IPeer peer,
                                      Move.Direction direction,
-                                     String playerId,
-                                     String authCode) throws RemoteException;
+                                     int playerId,
+                                     long authCode,
+                                     long sequence,
+                                     long knownVersion) throws RemoteException;
 
     /**
-     * ping primary server
+     * ping primary server, getting the changes since knownVersion as for callPrimaryMove
      */
     IReply.PingReply callPrimaryPing(IPeer peer,
-                                     String playerId,
-                                     String authCode) throws RemoteException;
+                                     int playerId,
+                                     long authCode,
+                                     long knownVersion) throws RemoteException;
+
+    /**
+     * Called by the Backup server to the Primary server to catch up from the given versions
+     * of its game state and server secrets (-1 if it has none).
+     *
+     * @return the next step of the catch-up, or null if the peer is not the backup server
+     */
+    IReply.CatchUpReply callPrimaryCatchUp(IPeer peer,
+                                           int playerId,
+                                           long authCode,
+                                           long fromVersion,
+                                           long secretsVersion) throws RemoteException;
+
+    /**
+     * Called by the Backup server to the Primary server to compare Merkle trees of the game state.
+     * A version of -1 starts a comparison from the primary's current state, later calls pass the
+     * version of the first reply so that they are served from that same state.
+     *
+     * @return the hashes of the given nodes, see GameState.MERKLE_LEAF_COUNT, or null if the peer
+     * is not the backup server or the version is no longer retained
+     */
+    IReply.MerkleReply callPrimaryMerkleNodes(IPeer peer,
+                                              int playerId,
+                                              long authCode,
+                                              long version,
+                                              int[] nodes) throws RemoteException;
+
+    /**
+     * Called by the Backup server to the Primary server to fetch the content of the Merkle tree
+     * leaves that differ between their game states, at the version of the comparison.
+     *
+     * @return the repair, or null if the peer is not the backup server or the version is no longer retained
+     */
+    StateRepair callPrimaryRepair(IPeer peer,
+                                  int playerId,
+                                  long authCode,
+                                  long version,
+                                  int[] leaves) throws RemoteException;
+
+    /**
+     * Like callPrimaryPing, but only carries the game state when the peer is promoted.
+     * Otherwise the reply only tells the primary's current version.
+     */
+    IReply.PingReply callPrimaryHeartbeat(IPeer peer,
+                                          int playerId,
+                                          long authCode) throws RemoteException;
 
 
     /*============ BACKUP SERVER METHODS =============*/
@@ -43,13 +102,36 @@ public interface IPeer extends Remote {
      */
     void callBackupUpdate(GameState gameState, ServerSecrets serverSecrets) throws RemoteException;
 
+    /**
+     * Called by Primary to Backup server to replicate the changes made since the last update.
+     * The secrets changes are null unless players have joined or left since the last update.
+     * The mutations are null if they are no longer logged, in which case the backup has to
+     * catch up with callPrimaryCatchUp.
+     *
+     * @return the version of the backup's game state after applying the changes, or -1 if they
+     * could not be applied and the backup is catching up on its own
+     */
+    long callBackupApply(List<Mutation> mutations, ServerSecrets.Delta secretsChanges) throws RemoteException;
+
+
+    /**
+     * Called by the peers to read the game state from the Backup server instead of the Primary.
+     *
+     * @return the backup's game state, or its changes since knownVersion as for callPrimaryMove,
+     * or null if it is older than minVersion or this peer is not a backup server
+     */
+    IReply.PingReply callBackupRead(IPeer peer,
+                                    int playerId,
+                                    long authCode,
+                                    long minVersion,
+                                    long knownVersion) throws RemoteException;
 
     /**
      * called by player to inform backup that primary server died.
      */
     IReply.PingReply callBackupOnPrimaryDied(IPeer peer,
-                                             String playerId,
-                                             String authCode,
+                                             int playerId,
+                                             long authCode,
                                              IPeer deadPrimary) throws RemoteException;
 
 
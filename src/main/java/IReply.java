@@ -1,48 +1,62 @@
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * @author lpthanh
  */
 interface IReply extends Serializable {
 
+    /**
+     * @return the version of the game state this reply was built from, for discarding stale replies
+     */
+    long getVersion();
+
     class JoinReply implements IReply {
 
         private final boolean accepted;
 
-        private final String playerId;
+        private final int playerId;
 
-        private final String authCode;
+        private final long authCode;
 
         private final boolean becomeBackup;
 
-        private JoinReply(boolean accepted, String playerId, String authCode, boolean becomeBackup) {
+        private final long version;
+
+        private JoinReply(boolean accepted, int playerId, long authCode, boolean becomeBackup, long version) {
             this.accepted = accepted;
             this.playerId = playerId;
             this.authCode = authCode;
             this.becomeBackup = becomeBackup;
+            this.version = version;
+        }
+
+        public static JoinReply createDeclineReply(long version) {
+            return new JoinReply(false, Player.NO_PLAYER, 0, false, version);
         }
 
-        public static JoinReply createDeclineReply() {
-            return new JoinReply(false, null, null, false);
+        public static JoinReply createApproveAsBackupReply(int playerId, long authCode, long version) {
+            return new JoinReply(true, playerId, authCode, true, version);
         }
 
-        public static JoinReply createApproveAsBackupReply(String playerId, String authCode) {
-            return new JoinReply(true, playerId, authCode, true);
+        public static JoinReply createApproveAsNormalReply(int playerId, long authCode, long version) {
+            return new JoinReply(true, playerId, authCode, false, version);
         }
 
-        public static JoinReply createApproveAsNormalReply(String playerId, String authCode) {
-            return new JoinReply(true, playerId, authCode, false);
+        @Override
+        public long getVersion() {
+            return version;
         }
 
         public boolean isAccepted() {
             return accepted;
         }
 
-        public String getPlayerId() {
+        public int getPlayerId() {
             return playerId;
         }
 
-        public String getAuthCode() {
+        public long getAuthCode() {
             return authCode;
         }
 
@@ -72,6 +86,15 @@ interface IReply extends Serializable {
 
         private final ServerSecrets serverSecrets;
 
+        /**
+         * The changes since the version the peer reported, or null if the full game state is sent
+         */
+        private final List<Mutation> mutations;
+
+        private final long version;
+
+        private final long stateHash;
+
         /**
          * Server secret should be null if promotionStatus is neither
          * PROMOTED_TO_PRIMARY or PROMOTED_TO_BACKUP.
@@ -80,19 +103,55 @@ interface IReply extends Serializable {
                          GameState gameState,
                          ServerSecrets serverSecrets) {
 
+            this(promotionStatus, gameState, serverSecrets, null, gameState.getVersion(), gameState.getStateHash());
+        }
+
+        protected PingReply(PromotionStatus promotionStatus,
+                            GameState gameState,
+                            ServerSecrets serverSecrets,
+                            List<Mutation> mutations,
+                            long version,
+                            long stateHash) {
+
             this.promotionStatus = promotionStatus;
             this.gameState = gameState;
             this.serverSecrets = serverSecrets;
+            this.mutations = mutations;
+            this.version = version;
+            this.stateHash = stateHash;
         }
 
         public PromotionStatus getPromotionStatus() {
             return promotionStatus;
         }
 
+        /**
+         * @return the game state, or null for a heartbeat acknowledgement or a delta
+         */
         public GameState getGameState() {
             return gameState;
         }
 
+        /**
+         * @return the changes leading from the version the peer reported to {@link #getVersion()},
+         * or null if this reply is not a delta
+         */
+        public List<Mutation> getMutations() {
+            return mutations;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the hash of the server's game state at {@link #getVersion()}
+         */
+        public long getStateHash() {
+            return stateHash;
+        }
+
         public ServerSecrets getServerSecrets() {
             return serverSecrets;
         }
@@ -101,6 +160,20 @@ interface IReply extends Serializable {
             return new PingReply(PromotionStatus.NONE, gameState, null);
         }
 
+        /**
+         * Create a reply that only tells the server's current version and hash, without the game state.
+         */
+        public static PingReply createAcknowledge(long version, long stateHash) {
+            return new PingReply(PromotionStatus.NONE, null, null, null, version, stateHash);
+        }
+
+        /**
+         * Create a reply that only carries the changes since the version the peer holds.
+         */
+        public static PingReply createDelta(List<Mutation> mutations, long version, long stateHash) {
+            return new PingReply(PromotionStatus.NONE, null, null, mutations, version, stateHash);
+        }
+
         public static PingReply createPromoteToBackup(GameState gameState, ServerSecrets serverSecrets) {
             return new PingReply(PromotionStatus.PROMOTED_TO_BACKUP, gameState, serverSecrets);
         }
@@ -123,6 +196,11 @@ interface IReply extends Serializable {
             this.illegalMove = illegalMove;
         }
 
+        private MoveReply(List<Mutation> mutations, long version, long stateHash, boolean illegalMove) {
+            super(PromotionStatus.NONE, null, null, mutations, version, stateHash);
+            this.illegalMove = illegalMove;
+        }
+
         public boolean isIllegalMove() {
             return illegalMove;
         }
@@ -135,9 +213,116 @@ interface IReply extends Serializable {
             return new MoveReply(PromotionStatus.NONE, gameState, null, illegalMove);
         }
 
+        public static MoveReply createDelta(List<Mutation> mutations, long version, long stateHash, boolean illegalMove) {
+            return new MoveReply(mutations, version, stateHash, illegalMove);
+        }
+
         public static MoveReply createPromoteToBackup(GameState gameState, ServerSecrets serverSecrets, boolean illegalMove) {
             return new MoveReply(PromotionStatus.PROMOTED_TO_BACKUP, gameState, serverSecrets, illegalMove);
         }
     }
 
+    /**
+     * One step of a backup server catching up with the primary: either a snapshot to install,
+     * the logged changes since the backup's version, or the confirmation that it is in sync.
+     */
+    class CatchUpReply implements IReply {
+
+        private final GameState gameState;
+
+        private final ServerSecrets serverSecrets;
+
+        private final List<Mutation> mutations;
+
+        private final ServerSecrets.Delta secretsChanges;
+
+        private final boolean inSync;
+
+        private final long version;
+
+        private CatchUpReply(GameState gameState,
+                             ServerSecrets serverSecrets,
+                             List<Mutation> mutations,
+                             ServerSecrets.Delta secretsChanges,
+                             boolean inSync,
+                             long version) {
+
+            this.gameState = gameState;
+            this.serverSecrets = serverSecrets;
+            this.mutations = mutations;
+            this.secretsChanges = secretsChanges;
+            this.inSync = inSync;
+            this.version = version;
+        }
+
+        public static CatchUpReply createSnapshot(GameState gameState, ServerSecrets serverSecrets) {
+            return new CatchUpReply(gameState, serverSecrets, null, null, false, gameState.getVersion());
+        }
+
+        public static CatchUpReply createChanges(List<Mutation> mutations, ServerSecrets.Delta secretsChanges, long version) {
+            return new CatchUpReply(null, null, mutations, secretsChanges, false, version);
+        }
+
+        public static CatchUpReply createInSync(long version) {
+            return new CatchUpReply(null, null, null, null, true, version);
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the snapshot to install, or null if the changes are sent instead
+         */
+        public GameState getGameState() {
+            return gameState;
+        }
+
+        public ServerSecrets getServerSecrets() {
+            return serverSecrets;
+        }
+
+        public List<Mutation> getMutations() {
+            return mutations;
+        }
+
+        public ServerSecrets.Delta getSecretsChanges() {
+            return secretsChanges;
+        }
+
+        public boolean isInSync() {
+            return inSync;
+        }
+    }
+
+    /**
+     * The hashes of some Merkle tree nodes of one version of the game state, which the primary
+     * retains so that every level of a comparison is read from the same version.
+     */
+    class MerkleReply implements IReply {
+
+        private final long version;
+
+        private final long[] hashes;
+
+        private MerkleReply(long version, long[] hashes) {
+            this.version = version;
+            this.hashes = hashes;
+        }
+
+        public static MerkleReply create(GameState gameState, int[] nodes) {
+            return new MerkleReply(gameState.getVersion(), gameState.getMerkleNodes(nodes));
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        public long[] getHashes() {
+            return hashes;
+        }
+    }
+
 }
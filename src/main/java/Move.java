@@ -19,21 +19,40 @@ public class Move implements Serializable {
 
     }
 
+    /**
+     * Sequence number of a move that was not numbered by its client.
+     */
+    public static final long NO_SEQUENCE = -1;
+
     private final Direction direction;
 
-    private final String playerId;
+    private final int playerId;
+
+    private final long sequence;
+
+    public Move(Direction direction, int playerId) {
+        this(direction, playerId, NO_SEQUENCE);
+    }
 
-    public Move(Direction direction, String playerId) {
+    public Move(Direction direction, int playerId, long sequence) {
         this.direction = direction;
         this.playerId = playerId;
+        this.sequence = sequence;
     }
 
     public Direction getDirection() {
         return direction;
     }
 
-    public String getPlayerId() {
+    public int getPlayerId() {
         return playerId;
     }
 
+    /**
+     * @return the number the client gave this move, see IPeer.callPrimaryMove
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
 }
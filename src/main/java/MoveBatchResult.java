@@ -0,0 +1,52 @@
+import java.io.Serializable;
+
+/**
+ * Compact per-move outcome of {@link GameState#processMoves(java.util.List)}, stored as one byte
+ * per move in the same order as the batch, so that it is cheap to send over RMI.
+ *
+ * @author lpthanh
+ */
+public class MoveBatchResult implements Serializable {
+
+    /**
+     * The move was rejected because it leaves the board or runs into another player.
+     */
+    public static final byte ILLEGAL = 0;
+
+    /**
+     * The player moved to an empty cell.
+     */
+    public static final byte MOVED = 1;
+
+    /**
+     * The player moved and claimed a treasure on the new cell.
+     */
+    public static final byte CLAIMED_TREASURE = 2;
+
+    /**
+     * The move had no effect because the player is unknown or dead, or there was no direction.
+     */
+    public static final byte IGNORED = 3;
+
+    private final byte[] outcomes;
+
+    public MoveBatchResult(byte[] outcomes) {
+        this.outcomes = outcomes;
+    }
+
+    public int size() {
+        return outcomes.length;
+    }
+
+    public byte getOutcome(int index) {
+        return outcomes[index];
+    }
+
+    public boolean isIllegal(int index) {
+        return outcomes[index] == ILLEGAL;
+    }
+
+    public boolean hasClaimedTreasure(int index) {
+        return outcomes[index] == CLAIMED_TREASURE;
+    }
+}
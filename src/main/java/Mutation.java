@@ -0,0 +1,165 @@
+import java.io.Serializable;
+
+/**
+ * A compact record of one committed change to a {@link GameState}. Replaying the records of a
+ * state in version order on an identical copy of it, using {@link GameState#apply(Mutation)},
+ * reproduces the same state.
+ *
+ * @author lpthanh
+ */
+public class Mutation implements Serializable {
+
+    public enum Type {
+
+        /**
+         * A legal move, including any treasure it claimed.
+         */
+        MOVE,
+
+        ADD_PLAYER,
+
+        PLAYER_STATUS,
+
+        EXCLUSIVE_ROLE,
+
+        PRIMARY,
+
+        BACKUP,
+
+        RUNNING_STATE,
+
+        /**
+         * Claimed treasures were dropped from the treasure list, see {@link GameState#compact()}.
+         */
+        COMPACT
+
+    }
+
+    private final Type type;
+
+    private final int playerId;
+
+    private final Move.Direction direction;
+
+    private final PeerRole role;
+
+    private final boolean alive;
+
+    private final RunningState runningState;
+
+    private final IPeer peer;
+
+    private long moveSequence = Move.NO_SEQUENCE;
+
+    private long version;
+
+    private long stateHash;
+
+    private Mutation(Type type,
+                     int playerId,
+                     Move.Direction direction,
+                     PeerRole role,
+                     boolean alive,
+                     RunningState runningState,
+                     IPeer peer) {
+
+        this.type = type;
+        this.playerId = playerId;
+        this.direction = direction;
+        this.role = role;
+        this.alive = alive;
+        this.runningState = runningState;
+        this.peer = peer;
+    }
+
+    public static Mutation createMove(int playerId, Move.Direction direction, long moveSequence) {
+        Mutation mutation = new Mutation(Type.MOVE, playerId, direction, null, false, null, null);
+        mutation.moveSequence = moveSequence;
+        return mutation;
+    }
+
+    public static Mutation createAddPlayer(int playerId, PeerRole role) {
+        return new Mutation(Type.ADD_PLAYER, playerId, null, role, true, null, null);
+    }
+
+    public static Mutation createPlayerStatus(int playerId, boolean alive, PeerRole role) {
+        return new Mutation(Type.PLAYER_STATUS, playerId, null, role, alive, null, null);
+    }
+
+    public static Mutation createExclusiveRole(int playerId, PeerRole role) {
+        return new Mutation(Type.EXCLUSIVE_ROLE, playerId, null, role, false, null, null);
+    }
+
+    public static Mutation createPrimary(int playerId, IPeer peer) {
+        return new Mutation(Type.PRIMARY, playerId, null, null, false, null, peer);
+    }
+
+    public static Mutation createBackup(int playerId, IPeer peer) {
+        return new Mutation(Type.BACKUP, playerId, null, null, false, null, peer);
+    }
+
+    public static Mutation createRunningState(RunningState runningState) {
+        return new Mutation(Type.RUNNING_STATE, Player.NO_PLAYER, null, null, false, runningState, null);
+    }
+
+    public static Mutation createCompact() {
+        return new Mutation(Type.COMPACT, Player.NO_PLAYER, null, null, false, null, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getPlayerId() {
+        return playerId;
+    }
+
+    public Move.Direction getDirection() {
+        return direction;
+    }
+
+    public PeerRole getRole() {
+        return role;
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    public RunningState getRunningState() {
+        return runningState;
+    }
+
+    public IPeer getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return the number the client gave the move, which is not part of the game state
+     */
+    public long getMoveSequence() {
+        return moveSequence;
+    }
+
+    /**
+     * @return the version of the game state right after this change was committed
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * @return the hash of the game state right after this change was committed
+     */
+    public long getStateHash() {
+        return stateHash;
+    }
+
+    void setStateHash(long stateHash) {
+        this.stateHash = stateHash;
+    }
+}
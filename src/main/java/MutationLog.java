@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded, in-memory log of the most recent {@link Mutation}s committed to a game state,
+ * kept in a ring buffer. Callers must synchronize on the log.
+ *
+ * @author lpthanh
+ */
+public class MutationLog {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+
+    private Mutation[] entries;
+
+    /**
+     * Version of the state before the oldest retained mutation.
+     */
+    private long startVersion;
+
+    private int count;
+
+    public MutationLog(long startVersion) {
+        this(startVersion, DEFAULT_CAPACITY);
+    }
+
+    public MutationLog(long startVersion, int capacity) {
+        this.startVersion = startVersion;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Append a mutation, whose version must directly follow the last one in the log.
+     * The oldest mutation is dropped when the log is full.
+     */
+    public void append(Mutation mutation) {
+        if (entries == null) {
+            // allocated lazily, as most snapshots and client copies never log anything
+            entries = new Mutation[capacity];
+        }
+
+        long version = mutation.getVersion();
+        entries[(int) (version % capacity)] = mutation;
+        if (count == capacity) {
+            startVersion++;
+        } else {
+            count++;
+        }
+    }
+
+    /**
+     * Drop all mutations, e.g. after a change that cannot be expressed as mutations.
+     * Anyone behind the given version then needs a full copy of the state.
+     */
+    public void reset(long version) {
+        startVersion = version;
+        count = 0;
+    }
+
+    /**
+     * @return the mutations committed after the given version, in order, or null if some of them
+     * are no longer retained
+     */
+    public List<Mutation> since(long version) {
+        long endVersion = startVersion + count;
+        if (version < startVersion || version > endVersion) {
+            return null;
+        }
+
+        List<Mutation> result = new ArrayList<>((int) (endVersion - version));
+        for (long v = version + 1; v <= endVersion; v++) {
+            result.add(entries[(int) (v % capacity)]);
+        }
+
+        return result;
+    }
+}
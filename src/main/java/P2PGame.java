@@ -6,16 +6,22 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class P2PGame extends UnicastRemoteObject implements IPeer {
 
     public static final long PING_INTERVAL = 3000;
 
+    /**
+     * How many versions behind the primary server a game state read from the backup server may be.
+     */
+    public static final long MAX_READ_STALENESS = 64;
+
     public static final String NAME_PEER = "FRIENDLY_PEER";
 
     private RMIServer rmiServer;
@@ -28,6 +34,8 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
 
     private final GameClient gameClient = new GameClient();
 
+    private GameParams.ReplicationParams replicationParams = GameParams.ReplicationParams.SYNC;
+
     private PrimaryServer primaryServer = new NilPrimaryServer();
 
     private BackupServer backupServer = new NilBackupServer();
@@ -45,6 +53,9 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
     }
 
     public void start(GameParams params) {
+        this.replicationParams = params.getReplicationParams();
+        this.gameClient.setMoveWindow(params.getMoveWindow());
+
         if (params instanceof GameParams.PrimaryParams) {
             GameParams.PrimaryParams primaryParams = (GameParams.PrimaryParams) params;
             exec.execute(() -> {
@@ -54,7 +65,8 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
                     P2PGame.this.primaryServer = new BootstrappingPrimaryServer(
                             primaryParams.getBoardSize(),
                             primaryParams.getTreasureCount(),
-                            primaryParams.getInitialWaitSeconds()
+                            primaryParams.getInitialWaitSeconds(),
+                            primaryParams.getSeed()
                     );
                     P2PGame.this.primaryServer.start();
                     P2PGame.this.gameClient.connectToPrimary(hostPort.getHost(), hostPort.getPort());
@@ -68,6 +80,7 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
                 try {
                     GameParams.HostPort hostPort = params.getHostPort();
                     P2PGame.this.rmiServer = createServer(this, false, hostPort.getPort(), logger);
+                    P2PGame.this.gameClient.setVerifying(((GameParams.NonPrimaryParams) params).isVerifying());
                     P2PGame.this.gameClient.connectToPrimary(hostPort.getHost(), hostPort.getPort());
                 } catch (Exception e) {
                     logger.serverLogError("Unable to bind server.", e);
@@ -152,17 +165,26 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
 
     }
 
-    boolean isSelf(String playerId) {
-        return playerId.equals(gameClient.getPlayerId());
+    boolean isSelf(int playerId) {
+        return playerId == gameClient.getPlayerId();
     }
 
     /**
      * @return the player ID assigned to this peer (available after a successful join)
      */
-    String getSelfPlayerId() {
+    int getSelfPlayerId() {
         return getGameClient().getPlayerId();
     }
 
+    /**
+     * @return the number of committed changes the backup server has not acknowledged yet,
+     * {@link Long#MAX_VALUE} if it is not known what the backup holds, or zero if this peer
+     * is not the primary server
+     */
+    public long getReplicationLag() {
+        return primaryServer.getReplicationLag();
+    }
+
     /**
      * Run by Client
      */
@@ -171,6 +193,14 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
         gameClient.callClientGameStarted(gameState);
     }
 
+    /**
+     * Run by Client
+     */
+    @Override
+    public void callClientUpdate(IReply.PingReply update) throws RemoteException {
+        gameClient.callClientUpdate(update);
+    }
+
     /**
      * Run by Primary Server
      */
@@ -185,10 +215,12 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
     @Override
     public IReply.MoveReply callPrimaryMove(IPeer peer,
                                             Move.Direction direction,
-                                            String playerId,
-                                            String authCode) throws RemoteException {
+                                            int playerId,
+                                            long authCode,
+                                            long sequence,
+                                            long knownVersion) throws RemoteException {
 
-        return primaryServer.callPrimaryMove(peer, direction, playerId, authCode);
+        return primaryServer.callPrimaryMove(peer, direction, playerId, authCode, sequence, knownVersion);
     }
 
     /**
@@ -196,10 +228,61 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
      */
     @Override
     public IReply.PingReply callPrimaryPing(IPeer peer,
-                                            String playerId,
-                                            String authCode) throws RemoteException {
+                                            int playerId,
+                                            long authCode,
+                                            long knownVersion) throws RemoteException {
+
+        return primaryServer.callPrimaryPing(peer, playerId, authCode, knownVersion);
+    }
+
+    /**
+     * Run by Primary Server
+     */
+    @Override
+    public IReply.CatchUpReply callPrimaryCatchUp(IPeer peer,
+                                                  int playerId,
+                                                  long authCode,
+                                                  long fromVersion,
+                                                  long secretsVersion) throws RemoteException {
+
+        return primaryServer.callPrimaryCatchUp(peer, playerId, authCode, fromVersion, secretsVersion);
+    }
+
+    /**
+     * Run by Primary Server
+     */
+    @Override
+    public IReply.MerkleReply callPrimaryMerkleNodes(IPeer peer,
+                                                     int playerId,
+                                                     long authCode,
+                                                     long version,
+                                                     int[] nodes) throws RemoteException {
+
+        return primaryServer.callPrimaryMerkleNodes(peer, playerId, authCode, version, nodes);
+    }
+
+    /**
+     * Run by Primary Server
+     */
+    @Override
+    public StateRepair callPrimaryRepair(IPeer peer,
+                                         int playerId,
+                                         long authCode,
+                                         long version,
+                                         int[] leaves) throws RemoteException {
+
+        return primaryServer.callPrimaryRepair(peer, playerId, authCode, version, leaves);
+    }
+
+    /**
+     * Run by Primary Server
+     */
+    @Override
+    public IReply.PingReply callPrimaryHeartbeat(IPeer peer,
+                                                 int playerId,
+                                                 long authCode) throws RemoteException {
 
-        return primaryServer.callPrimaryPing(peer, playerId, authCode);
+        return primaryServer.callPrimaryHeartbeat(peer, playerId, authCode);
     }
 
     /**
@@ -211,13 +294,35 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
         backupServer.callBackupUpdate(gameState, serverSecrets);
     }
 
+    /**
+     * Run by Backup Server
+     */
+    @Override
+    public long callBackupApply(List<Mutation> mutations, ServerSecrets.Delta secretsChanges) throws RemoteException {
+
+        return backupServer.callBackupApply(mutations, secretsChanges);
+    }
+
+    /**
+     * Run by Backup Server
+     */
+    @Override
+    public IReply.PingReply callBackupRead(IPeer peer,
+                                           int playerId,
+                                           long authCode,
+                                           long minVersion,
+                                           long knownVersion) throws RemoteException {
+
+        return backupServer.callBackupRead(peer, playerId, authCode, minVersion, knownVersion);
+    }
+
     /**
      * Run by Backup Server
      */
     @Override
     public IReply.PingReply callBackupOnPrimaryDied(IPeer peer,
-                                                    String playerId,
-                                                    String authCode,
+                                                    int playerId,
+                                                    long authCode,
                                                     IPeer deadPrimary) throws RemoteException {
 
         return backupServer.callBackupOnPrimaryDied(peer, playerId, authCode, deadPrimary);
@@ -225,39 +330,258 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
 
     class GameClient {
 
+        /**
+         * The latest snapshot of the game state, as shown by the UI.
+         */
         private GameState gameState;
 
-        private String playerId;
+        /**
+         * The client's modifiable copy of the game state, which the changes in delta replies are
+         * applied to, or null to request the full state with the next request.
+         */
+        private GameState localState;
+
+        private int playerId = Player.NO_PLAYER;
+
+        private long authCode;
+
+        /**
+         * Whether to report the changes from the primary server that break the game rules or do
+         * not lead to the hash it logged with them, see {@link #applyReply(IReply.PingReply)}.
+         */
+        private boolean verifying;
+
+        /**
+         * Moves not sent yet, in key press order. The fields below are guarded by it.
+         */
+        private final Deque<PendingMove> pendingMoves = new ArrayDeque<>();
+
+        private int movesInFlight;
+
+        private int moveWindow = GameParams.DEFAULT_MOVE_WINDOW;
+
+        /**
+         * The primary server the move sequence numbers are counted for.
+         */
+        private IPeer movePrimaryServer;
+
+        private long nextMoveSequence;
+
+        /**
+         * The player's moves not confirmed by the primary server yet, in key press order.
+         * They are shown on top of the primary's game state, see {@link #showGameState()}.
+         * Guarded by the client.
+         */
+        private final List<PendingMove> predictedMoves = new ArrayList<>();
 
-        private String authCode;
+        /**
+         * Version of the primary's game state at the last pulse check. Only accessed by the
+         * pulse check timer.
+         */
+        private long lastHeartbeatVersion = -1;
 
-        public String getPlayerId() {
+        public int getPlayerId() {
             return playerId;
         }
 
-        public void setPlayerId(String playerId) {
+        public void setPlayerId(int playerId) {
             this.playerId = playerId;
         }
 
-        public String getAuthCode() {
+        public long getAuthCode() {
             return authCode;
         }
 
-        public void setAuthCode(String authCode) {
+        public void setAuthCode(long authCode) {
             this.authCode = authCode;
         }
 
-        private void setGameState(GameState gameState) {
+        public void setVerifying(boolean verifying) {
+            this.verifying = verifying;
+        }
+
+        public void setMoveWindow(int moveWindow) {
+            synchronized (pendingMoves) {
+                this.moveWindow = moveWindow;
+            }
+        }
+
+        /**
+         * Apply the game state from a reply, unless it is older than the one already applied.
+         * Replies to concurrent requests can arrive out of order.
+         */
+        private synchronized void setGameState(GameState gameState) {
+            if (this.gameState != null && gameState.getVersion() < this.gameState.getVersion()) {
+                return;
+            }
+
+            GameState previousState = localState;
+            localState = gameState.copy();
+            if (verifying) {
+                verifyFullState(previousState, gameState);
+            }
+
+            publishGameState(gameState);
+        }
+
+        /**
+         * A full state cannot be checked against the rules, only against its own hash, which the
+         * copy made of it has just recomputed from the content. The changes it skips over were
+         * never delivered, so they go unverified.
+         */
+        private void verifyFullState(GameState previousState, GameState fullState) {
+            if (localState.getMerkleNodes(new int[]{1})[0] != fullState.getStateHash()) {
+                logger.clientLogError("Primary Server sent a game state at version " + fullState.getVersion()
+                        + " that does not match its hash.", null);
+            }
+
+            if (previousState != null && fullState.getVersion() > previousState.getVersion()) {
+                logger.clientLog("Changes after version " + previousState.getVersion() + " were not delivered. "
+                        + "Verifying from version " + fullState.getVersion() + " on.");
+            }
+        }
+
+        /**
+         * Apply a reply carrying either the full game state or the changes since the version
+         * the client reported, which are applied to its local copy in place. If they cannot be
+         * applied, the next request asks for the full state again.
+         * <p>
+         * Applying a change checks a move against the game rules and the resulting hash against
+         * the one the primary logged with it, so when verifying, every delivered change is
+         * verified without fetching anything more. Changes decided by the servers (joins, deaths,
+         * promotions) can only be checked for consistency with the hash.
+         *
+         * @return false if the changes could not be applied
+         */
+        private synchronized boolean applyReply(IReply.PingReply reply) {
+            if (reply.getGameState() != null) {
+                setGameState(reply.getGameState());
+                return true;
+            }
+
+            List<Mutation> mutations = reply.getMutations();
+            if (mutations == null || localState == null || reply.getVersion() <= localState.getVersion()) {
+                return true;
+            }
+
+            for (Mutation mutation : mutations) {
+                if (mutation.getVersion() <= localState.getVersion()) {
+                    // already applied from another reply
+                    continue;
+                }
+
+                boolean missedChanges = mutation.getVersion() != localState.getVersion() + 1;
+                if (!localState.apply(mutation)) {
+                    if (verifying && !missedChanges) {
+                        logger.clientLogError("Change at version " + mutation.getVersion()
+                                + " from Primary Server failed verification.", null);
+                    }
+
+                    logger.clientLog("Unable to apply the change at version " + mutation.getVersion()
+                            + ". Requesting the full game state.");
+                    localState = null;
+                    return false;
+                }
+
+                if (mutation.getType() == Mutation.Type.MOVE && mutation.getPlayerId() == playerId) {
+                    // the primary applies the player's moves in order, so the earlier ones are done too
+                    long sequence = mutation.getMoveSequence();
+                    predictedMoves.removeIf(move -> move.sequence != Move.NO_SEQUENCE && move.sequence <= sequence);
+                }
+            }
+
+            publishGameState(localState.snapshot());
+            return true;
+        }
+
+        private void publishGameState(GameState gameState) {
             this.gameState = gameState;
-            Platform.runLater(() -> uiController.onGameStateUpdated(gameState));
+            showGameState();
+        }
+
+        /**
+         * Show the primary's latest game state, with the moves it has not confirmed yet predicted
+         * on top of it. They are predicted again from the primary's state on every update, so a
+         * misprediction, e.g. moving into a cell another player got to first, is rolled back by
+         * the update that reveals it. Must be called while holding the client's lock.
+         */
+        private void showGameState() {
+            if (gameState == null) {
+                // the game has not started yet
+                return;
+            }
+
+            GameState shownState = gameState;
+            if (!predictedMoves.isEmpty() && gameState.isActive()) {
+                List<Move> moves = new ArrayList<>(predictedMoves.size());
+                for (PendingMove move : predictedMoves) {
+                    moves.add(new Move(move.direction, playerId));
+                }
+
+                // the prediction keeps the primary's version, so it never takes the versions of the
+                // changes the primary commits next
+                shownState = gameState.predict(moves);
+            }
+
+            GameState state = shownState;
+            Platform.runLater(() -> uiController.onGameStateUpdated(state));
+        }
+
+        /**
+         * Stop predicting a move once the primary server has replied to it, and apply the reply.
+         * The reply is null if the move could not be sent.
+         */
+        private synchronized void completeMove(PendingMove move, IReply.MoveReply reply) {
+            boolean predicted = predictedMoves.remove(move);
+            GameState shownState = gameState;
+            if (reply != null) {
+                applyReply(reply);
+            }
+
+            if (predicted && gameState == shownState) {
+                // the reply did not bring a newer state, so show the state without the move
+                showGameState();
+            }
+        }
+
+        /**
+         * @return the version of the local copy of the game state, or -1 to request the full state
+         */
+        private synchronized long getKnownVersion() {
+            return localState == null ? -1 : localState.getVersion();
         }
 
-        public void callClientGameStarted(GameState gameState) {
+        public synchronized void callClientGameStarted(GameState gameState) {
             this.gameState = gameState;
+            this.localState = gameState.copy();
+            if (verifying) {
+                // the initial layout is not logged, so it is the starting point of the verification
+                verifyFullState(null, gameState);
+            }
+
             Platform.runLater(() -> uiController.onGameStarted(gameState));
             startPulseChecking();
         }
 
+        /**
+         * Apply the changes pushed by the primary server. If some were missed, the full state
+         * is requested at once rather than at the next pulse check.
+         */
+        public void callClientUpdate(IReply.PingReply update) {
+            if (applyReply(update)) {
+                return;
+            }
+
+            exec.execute(() -> {
+                IPeer primaryServer = gameState.getServerConfig().getPrimaryServer();
+                try {
+                    processPingReply(primaryServer.callPrimaryPing(self, playerId, authCode, -1));
+                } catch (RemoteException e) {
+                    // a dead primary is detected by the pulse check
+                }
+            });
+        }
+
         public boolean connectToPrimary(String host, int port) {
             try {
                 logger.clientLog("Connecting to Primary Server at " + host + ":" + port);
@@ -274,7 +598,7 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
                 this.playerId = reply.getPlayerId();
                 this.authCode = reply.getAuthCode();
 
-                logger.clientLog("Player has joined the game, with ID = [" + getPlayerId() + "]");
+                logger.clientLog("Player has joined the game, with ID = [" + Player.getDisplayName(getPlayerId()) + "]");
 
                 if (reply.shouldBecomeBackup()) {
                     logger.clientLog("Player was promoted to be the Backup Server.");
@@ -313,15 +637,62 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
             IPeer primaryServer = gameState.getServerConfig().getPrimaryServer();
 
             try {
-                // contact primary
-                IReply.PingReply reply = primaryServer.callPrimaryPing(self, playerId, authCode);
-                processPingReply(reply);
+                if (isSelf(gameState.getServerConfig().getPrimaryPlayerId())) {
+                    // reading from the local primary costs nothing
+                    processPingReply(primaryServer.callPrimaryPing(self, playerId, authCode, getKnownVersion()));
+                    return;
+                }
+
+                // the primary only confirms liveness, the changes are pushed by the primary
+                IReply.PingReply reply = primaryServer.callPrimaryHeartbeat(self, playerId, authCode);
+                long pushedVersion = lastHeartbeatVersion;
+                lastHeartbeatVersion = reply.getVersion();
+
+                if (reply.getGameState() != null) {
+                    processPingReply(reply);
+                } else if (pushedVersion > gameState.getVersion()) {
+                    // what the primary had at the last pulse check should have been pushed by now
+                    readGameState(primaryServer, reply.getVersion());
+                } else if (reply.getVersion() == gameState.getVersion()
+                        && reply.getStateHash() != gameState.getStateHash()) {
+                    if (verifying) {
+                        logger.clientLogError("Primary Server reported a game state that its changes do not lead to.", null);
+                    }
+
+                    logger.clientLog("Game state differs from Primary Server's. Reloading it.");
+                    processPingReply(primaryServer.callPrimaryPing(self, playerId, authCode, -1));
+                }
 
             } catch (RemoteException e) {
                 primaryDown(primaryServer);
             }
         }
 
+        /**
+         * Read a newer game state from the backup server, which must be at most
+         * {@link #MAX_READ_STALENESS} versions behind the primary's. Falls back to the primary
+         * if the backup cannot offer that.
+         */
+        private void readGameState(IPeer primaryServer, long primaryVersion) throws RemoteException {
+            long minVersion = Math.max(gameState.getVersion() + 1, primaryVersion - MAX_READ_STALENESS);
+
+            IPeer backupServer = gameState.getServerConfig().getBackupServer();
+            if (backupServer != null) {
+                try {
+                    IReply.PingReply reply = backupServer.callBackupRead(self, playerId, authCode, minVersion,
+                            getKnownVersion());
+                    if (reply != null) {
+                        applyReply(reply);
+                        return;
+                    }
+                } catch (RemoteException e) {
+                    // the primary is in charge of detecting a dead backup
+                }
+            }
+
+            processPingReply(primaryServer.callPrimaryPing(self, playerId, authCode, getKnownVersion()));
+        }
+
         private void primaryDown(IPeer primaryServer) {
             logger.clientLog("Primary Server is down. Contacting Backup Server.");
 
@@ -337,8 +708,11 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
         }
 
         private void processPingReply(IReply.PingReply reply) {
-            setGameState(reply.getGameState());
+            applyReply(reply);
+            processPromotion(reply);
+        }
 
+        private void processPromotion(IReply.PingReply reply) {
             switch (reply.getPromotionStatus()) {
                 case PROMOTED_TO_PRIMARY: {
                     logger.clientLog("Promoted to Primary Server");
@@ -352,114 +726,406 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
                     break;
                 }
                 default: {
-                    setGameState(reply.getGameState());
+                    break;
                 }
             }
         }
 
+        /**
+         * Show a move at once, and queue it to be sent to the primary server. Up to
+         * {@link #moveWindow} moves are sent at once, numbered so that the primary applies
+         * them in key press order.
+         */
         public void sendMoveAsync(Move.Direction dir) {
-            exec.submit(() -> {
-                IPeer primaryServer = gameState.getServerConfig().getPrimaryServer();
-
-                try {
-                    // contact primary
-                    IReply.MoveReply reply = primaryServer.callPrimaryMove(self, dir, playerId, authCode);
-                    if (reply.isIllegalMove()) {
-                        logger.clientLog("Move was not allowed");
-                    }
+            PendingMove move = new PendingMove(dir);
+            synchronized (this) {
+                predictedMoves.add(move);
+                showGameState();
+            }
 
-                    processPingReply(reply);
+            synchronized (pendingMoves) {
+                pendingMoves.add(move);
+            }
 
-                } catch (RemoteException e) {
-                    primaryDown(primaryServer);
-                }
-            });
+            sendPendingMoves();
         }
-    }
-
-    private abstract class Server {
 
-        protected GameState gameState;
+        private void sendPendingMoves() {
+            while (true) {
+                IPeer primaryServer;
+                PendingMove move;
+                synchronized (pendingMoves) {
+                    if (pendingMoves.isEmpty() || movesInFlight >= moveWindow) {
+                        return;
+                    }
 
-        protected ServerSecrets serverSecrets;
+                    primaryServer = gameState.getServerConfig().getPrimaryServer();
+                    if (!primaryServer.equals(movePrimaryServer)) {
+                        // a new primary server numbers the moves from 0
+                        movePrimaryServer = primaryServer;
+                        nextMoveSequence = 0;
+                    }
 
-        protected final Object gameStateLock = new Object();
+                    move = pendingMoves.poll();
+                    move.sequence = nextMoveSequence++;
+                    movesInFlight++;
+                }
 
-        protected final void setRolePrimary(String playerId) {
-            if (gameState == null) {
-                return;
+                exec.submit(() -> sendMove(primaryServer, move));
             }
+        }
 
-            gameState.getPlayerList().forEach(player -> {
-                if (player.getId().equals(playerId)) {
-                    player.setRole(PeerRole.PRIMARY_SERVER);
-                } else if (player.getRole() == PeerRole.PRIMARY_SERVER) {
-                    // clear the primary role of all others
-                    player.setRole(PeerRole.NON_SERVER);
+        private void sendMove(IPeer primaryServer, PendingMove move) {
+            try {
+                // contact primary
+                IReply.MoveReply reply = primaryServer.callPrimaryMove(self, move.direction, playerId, authCode,
+                        move.sequence, getKnownVersion());
+                if (reply.isIllegalMove()) {
+                    logger.clientLog("Move was not allowed");
                 }
-            });
-        }
 
-        protected final void setRoleBackup(String playerId) {
-            if (gameState == null) {
-                return;
-            }
+                completeMove(move, reply);
+                processPromotion(reply);
 
-            gameState.getPlayerList().forEach(player -> {
-                if (player.getId().equals(playerId)) {
-                    player.setRole(PeerRole.BACKUP_SERVER);
-                } else if (player.getRole() == PeerRole.BACKUP_SERVER) {
-                    // clear the backup role of all others
-                    player.setRole(PeerRole.NON_SERVER);
+            } catch (RemoteException e) {
+                completeMove(move, null);
+                primaryDown(primaryServer);
+            } finally {
+                synchronized (pendingMoves) {
+                    movesInFlight--;
                 }
-            });
-        }
 
-        protected final void setDead(String playerId) {
-            for (Player player : gameState.getPlayerList()) {
-                if (player.getId().equals(playerId)) {
-                    synchronized (gameStateLock) {
-                        player.setAlive(false);
-                        player.setRole(PeerRole.DEAD);
-                        break;
-                    }
-                }
+                sendPendingMoves();
             }
         }
 
-        protected int getAliveCount() {
-            int aliveCount = 0;
-            for (Player player : gameState.getPlayerList()) {
-                if (player.isAlive()) {
-                    ++aliveCount;
-                }
-            }
+        /**
+         * A move made by the player, shown at once and sent to the primary server in the background.
+         */
+        private class PendingMove {
 
-            return aliveCount;
-        }
+            private final Move.Direction direction;
+
+            /**
+             * The move's sequence number, or {@link Move#NO_SEQUENCE} until it is sent.
+             */
+            private volatile long sequence = Move.NO_SEQUENCE;
 
+            PendingMove(Move.Direction direction) {
+                this.direction = direction;
+            }
+        }
     }
 
-    /**
-     * This parent class contains the basic implementation for a primary server's logic.
-     */
-    private abstract class PrimaryServer extends Server {
+    private abstract class Server {
 
-        protected Map<IPeer, Long> peerLastAccessMillis = new HashMap<>();
+        protected GameState gameState;
 
-        protected boolean promoteNewBackupServer;
+        protected ServerSecrets serverSecrets;
 
-        protected PrimaryServer() {
+        protected final Object gameStateLock = new Object();
 
-        }
+        /**
+         * The latest immutable copy of {@link #gameState}, for the replies and updates that carry
+         * the full state. It is read without locking and rebuilt in the background after changes,
+         * see {@link #refreshSnapshot()}.
+         */
+        private volatile GameState snapshot;
 
-        public void start() {
+        /**
+         * A private copy of {@link #gameState}, kept up to date by replaying the logged changes,
+         * so that snapshots are taken from it rather than by stopping the moves on the live state.
+         * Guarded by {@link #snapshotLock}, like {@link #snapshotSource}, the state it follows.
+         */
+        private GameState snapshotShadow;
 
-        }
+        private GameState snapshotSource;
+
+        private final Object snapshotLock = new Object();
+
+        private final AtomicBoolean snapshotRefreshScheduled = new AtomicBoolean();
 
         /**
-         * Check through all the peers to know if they are still alive, based on their
-         * last request's timing.
+         * Never waits, neither for the moves nor for a snapshot being built. The snapshot may lag
+         * the live state by the changes made since the last refresh, which its version tells, so
+         * the receiver picks those up with the next update. Use {@link #refreshSnapshot()} where a
+         * change that was just made must be included.
+         *
+         * @return the latest immutable copy of the game state, or null if there is none yet
+         */
+        protected final GameState getSnapshot() {
+            GameState current = snapshot;
+            if (current != null) {
+                return current;
+            }
+
+            return refreshSnapshot();
+        }
+
+        /**
+         * Bring the snapshot up to date with the live state: replay the changes logged since the
+         * shadow copy's version onto it, then freeze a copy of the shadow. The live state is only
+         * copied again, which excludes the moves, when it was replaced or its log no longer covers
+         * the shadow's version, e.g. after a repair.
+         *
+         * @return the up to date snapshot, or null if there is no game state yet
+         */
+        protected final GameState refreshSnapshot() {
+            GameState state = gameState;
+            if (state == null) {
+                return null;
+            }
+
+            synchronized (snapshotLock) {
+                GameState current = snapshot;
+                if (current != null && snapshotSource == state
+                        && current.getVersion() == state.getVersion()
+                        && current.getStateHash() == state.getStateHash()) {
+                    return current;
+                }
+
+                if (snapshotSource != state || !followLiveState(state)) {
+                    snapshotShadow = state.copy();
+                    snapshotSource = state;
+                }
+
+                current = snapshotShadow.snapshot();
+                snapshot = current;
+                return current;
+            }
+        }
+
+        /**
+         * Replay the changes logged on the live state onto the shadow copy.
+         * Must be called while holding {@link #snapshotLock}.
+         *
+         * @return false if they cannot be replayed, and the shadow must be copied again
+         */
+        private boolean followLiveState(GameState state) {
+            List<Mutation> mutations = state.getMutationsSince(snapshotShadow.getVersion());
+            if (mutations == null) {
+                return false;
+            }
+
+            for (Mutation mutation : mutations) {
+                if (!snapshotShadow.apply(mutation)) {
+                    return false;
+                }
+            }
+
+            // a change at the same version, e.g. a repair, shows only in the hash
+            return !mutations.isEmpty() || snapshotShadow.getStateHash() == state.getStateHash();
+        }
+
+        /**
+         * Notify that the game state has changed. Must be called after every change to it.
+         * The snapshot is refreshed by another thread, once for any number of changes made
+         * meanwhile, so the caller never builds it.
+         */
+        protected final void publishChange() {
+            if (snapshotRefreshScheduled.compareAndSet(false, true)) {
+                exec.execute(() -> {
+                    snapshotRefreshScheduled.set(false);
+                    refreshSnapshot();
+                });
+            }
+
+            onChangePublished();
+        }
+
+        /**
+         * Called after every change to the game state.
+         */
+        protected void onChangePublished() {
+
+        }
+
+        /**
+         * Create a reply updating a peer that holds the given version of the game state (-1 if none)
+         * to the current state: only the changes since that version, unless they are no longer
+         * logged or outnumber the players and treasures, in which case the full state is sent.
+         */
+        protected final IReply.PingReply createUpdate(long knownVersion) {
+            List<Mutation> changes = getChangesSince(knownVersion);
+            if (changes == null) {
+                return IReply.PingReply.createUpdate(getSnapshot());
+            }
+
+            Mutation last = changes.get(changes.size() - 1);
+            changes.remove(0);
+            return IReply.PingReply.createDelta(changes, last.getVersion(), last.getStateHash());
+        }
+
+        protected final IReply.MoveReply createMoveReply(long knownVersion, boolean illegalMove) {
+            List<Mutation> changes = getChangesSince(knownVersion);
+            if (changes == null) {
+                return IReply.MoveReply.createReply(getSnapshot(), illegalMove);
+            }
+
+            Mutation last = changes.get(changes.size() - 1);
+            changes.remove(0);
+            return IReply.MoveReply.createDelta(changes, last.getVersion(), last.getStateHash(), illegalMove);
+        }
+
+        /**
+         * Read the changes from the live log, without copying the state. The change that made
+         * knownVersion comes first, so that the last entry carries a version and hash that match
+         * even if more changes are committed meanwhile.
+         *
+         * @return the change that made knownVersion followed by the changes since,
+         * or null if the full state should be sent instead
+         */
+        private List<Mutation> getChangesSince(long knownVersion) {
+            if (knownVersion < 1 || gameState == null) {
+                return null;
+            }
+
+            List<Mutation> mutations = gameState.getMutationsSince(knownVersion - 1);
+            if (mutations == null || mutations.isEmpty()) {
+                return null;
+            }
+
+            if (mutations.size() - 1 > gameState.getPlayerList().size() + gameState.getTreasureList().size()) {
+                // too far behind, the full state is smaller
+                return null;
+            }
+
+            return mutations;
+        }
+
+        protected final void setRolePrimary(int playerId) {
+            if (gameState == null) {
+                return;
+            }
+
+            gameState.setExclusiveRole(playerId, PeerRole.PRIMARY_SERVER);
+            publishChange();
+        }
+
+        protected final void setRoleBackup(int playerId) {
+            if (gameState == null) {
+                return;
+            }
+
+            gameState.setExclusiveRole(playerId, PeerRole.BACKUP_SERVER);
+            publishChange();
+        }
+
+        protected final void setDead(int playerId) {
+            synchronized (gameStateLock) {
+                gameState.setPlayerStatus(playerId, false, PeerRole.DEAD);
+                publishChange();
+            }
+        }
+
+        protected int getAliveCount() {
+            return gameState.getAliveCount();
+        }
+
+    }
+
+    /**
+     * This parent class contains the basic implementation for a primary server's logic.
+     */
+    private abstract class PrimaryServer extends Server {
+
+        /**
+         * Time of the last request from each player, indexed by player handle (zero if none yet).
+         */
+        protected volatile long[] peerLastAccessMillis = new long[0];
+
+        /**
+         * Fewest claimed treasures that {@link #compact()} drops from the game state. Beyond that,
+         * it waits until they outnumber the unclaimed ones, as every compaction rebuilds the
+         * treasure index on all the copies of the state: the rebuilds then cost a constant amount
+         * per claim, however many treasures there are.
+         */
+        private static final int MIN_COMPACTION_COUNT = 64;
+
+        protected volatile boolean promoteNewBackupServer;
+
+        /**
+         * Version of the game state the backup server is known to hold, or -1 if unknown.
+         * Only written under {@link #replicationLock}.
+         */
+        protected volatile long backupVersion = -1;
+
+        /**
+         * Version of the server secrets the backup server is known to hold.
+         * Only accessed under {@link #replicationLock}.
+         */
+        private long backupSecretsVersion = -1;
+
+        /**
+         * Whether the backup server is pulling the changes itself, see {@link #callPrimaryCatchUp}.
+         * Nothing is pushed to it until it reports being in sync.
+         */
+        protected volatile boolean backupCatchingUp;
+
+        /**
+         * Serializes the calls to the backup server, so that they arrive in version order.
+         * Never held while acquiring {@link #gameStateLock}.
+         */
+        private final Object replicationLock = new Object();
+
+        /**
+         * Version of the game state last pushed to the peers, see {@link #runBroadcaster()}.
+         * Only accessed under {@link #broadcastLock}.
+         */
+        private long broadcastVersion = -1;
+
+        private final Object broadcastLock = new Object();
+
+        /**
+         * Maximum time to wait for a peer to take a pushed update.
+         */
+        private static final long PUSH_TIMEOUT = PING_INTERVAL;
+
+        /**
+         * Maximum time a move waits for the earlier moves of the same player to arrive.
+         */
+        private static final long MOVE_ORDER_TIMEOUT = 1000;
+
+        /**
+         * Orders the moves of each player, indexed by player handle (null until the first move).
+         */
+        private volatile MoveSequencer[] moveSequencers = new MoveSequencer[0];
+
+        /**
+         * The outbound channel to each player, indexed by player handle (null if none).
+         */
+        protected volatile PeerChannel[] peerChannels = new PeerChannel[0];
+
+        /**
+         * The state the backup server compares its Merkle tree with, retained from the root of
+         * the comparison until its repair, or null.
+         */
+        private volatile GameState repairSnapshot;
+
+        protected final BackupReplicator replicator;
+
+        protected PrimaryServer() {
+            switch (replicationParams.getMode()) {
+                case BOUNDED_ASYNC:
+                    this.replicator = new BoundedAsyncReplicator(replicationParams.getMaxLag());
+                    break;
+                case GROUP_COMMIT:
+                    this.replicator = new GroupCommitReplicator(replicationParams.getGroupWindowMillis(),
+                            replicationParams.getGroupBatchSize());
+                    break;
+                default:
+                    this.replicator = new SyncReplicator();
+                    break;
+            }
+        }
+
+        public void start() {
+
+        }
+
+        /**
+         * Check through all the peers to know if they are still alive, based on their
+         * last request's timing.
          */
         public void startPulseChecking() {
             final Timer timer = new Timer();
@@ -473,198 +1139,987 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
             timer.scheduleAtFixedRate(task, 0, (int) (PING_INTERVAL * 1.5));
         }
 
-        public abstract IReply.JoinReply callPrimaryJoin(IPeer peer);
-
         /**
-         * Obtain and verify the player object from player ID and auth code
+         * Start pushing the committed changes to the peers, which are assumed to hold the
+         * current version of the game state.
+         */
+        public void startBroadcasting() {
+            long version;
+            synchronized (broadcastLock) {
+                version = broadcastVersion = gameState.getVersion();
+            }
+
+            for (PeerChannel channel : peerChannels) {
+                if (channel != null) {
+                    channel.setKnownVersion(version);
+                }
+            }
+
+            exec.execute(this::runBroadcaster);
+        }
+
+        /**
+         * Create the channel for pushing updates to a peer that has joined.
+         */
+        protected final void openPeerChannel(int playerId, IPeer peer) {
+            synchronized (gameStateLock) {
+                if (playerId >= peerChannels.length) {
+                    peerChannels = Arrays.copyOf(peerChannels, Math.max(playerId + 1, peerChannels.length * 2));
+                }
+
+                peerChannels[playerId] = new PeerChannel(playerId, peer);
+            }
+        }
+
+        private void closePeerChannel(int playerId) {
+            synchronized (gameStateLock) {
+                if (playerId < peerChannels.length && peerChannels[playerId] != null) {
+                    peerChannels[playerId].close();
+                    peerChannels[playerId] = null;
+                }
+            }
+        }
+
+        @Override
+        protected void onChangePublished() {
+            synchronized (broadcastLock) {
+                broadcastLock.notifyAll();
+            }
+        }
+
+        /**
+         * Hand every new version of the game state to the channels of all live peers. This never
+         * waits for a peer, each channel pushes on its own.
+         */
+        private void runBroadcaster() {
+            try {
+                while (true) {
+                    long version;
+                    synchronized (broadcastLock) {
+                        while ((version = gameState.getVersion()) <= broadcastVersion) {
+                            broadcastLock.wait();
+                        }
+
+                        broadcastVersion = version;
+                    }
+
+                    PeerChannel[] channels = peerChannels;
+                    for (Player player : gameState.getPlayerList()) {
+                        int playerId = player.getId();
+                        if (player.isAlive() && playerId < channels.length && channels[playerId] != null) {
+                            channels[playerId].offer(version);
+                        }
+                    }
+
+                    if (gameState.getRunningState() == RunningState.GAME_ENDED) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * The outbound updates to one peer. Pending updates are conflated to the newest version,
+         * and the channel's own sending thread makes the calls one at a time, so a slow peer holds
+         * at most one pending update and one thread, however far it falls behind. A push that
+         * fails, or that {@link #checkPushes()} finds running longer than {@link #PUSH_TIMEOUT},
+         * counts as the peer being unresponsive; a hung call cannot be interrupted, so nothing is
+         * pushed to the peer until it returns. The channel of a dead peer is closed by
+         * {@link #compact()}.
+         */
+        private class PeerChannel {
+
+            private final int playerId;
+
+            private final IPeer peer;
+
+            /**
+             * The newest version not pushed yet, or -1. Guarded by this channel.
+             */
+            private long pendingVersion = -1;
+
+            private boolean sending;
+
+            private boolean closed;
+
+            /**
+             * Version of the game state the peer is known to hold, or -1 if unknown.
+             * Guarded by this channel.
+             */
+            private long knownVersion = -1;
+
+            /**
+             * When the call in progress started, or 0 if none. Guarded by this channel.
+             */
+            private long pushStartMillis;
+
+            /**
+             * Whether the call in progress has been reported as timed out. Guarded by this channel.
+             */
+            private boolean pushTimedOut;
+
+            PeerChannel(int playerId, IPeer peer) {
+                this.playerId = playerId;
+                this.peer = peer;
+            }
+
+            synchronized void setKnownVersion(long knownVersion) {
+                this.knownVersion = knownVersion;
+            }
+
+            void offer(long version) {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+
+                    pendingVersion = version;
+                    if (sending) {
+                        return;
+                    }
+
+                    sending = true;
+                }
+
+                exec.execute(this::send);
+            }
+
+            synchronized void close() {
+                closed = true;
+                pendingVersion = -1;
+            }
+
+            /**
+             * @return true if the call in progress has just been found to take longer than
+             * {@link #PUSH_TIMEOUT}; it is reported only once
+             */
+            synchronized boolean checkTimeout(long nowMillis) {
+                if (pushStartMillis == 0 || pushTimedOut || nowMillis - pushStartMillis <= PUSH_TIMEOUT) {
+                    return false;
+                }
+
+                // if the peer survives, it is sent the full state next time
+                pushTimedOut = true;
+                knownVersion = -1;
+                return true;
+            }
+
+            private void send() {
+                while (true) {
+                    long version;
+                    long fromVersion;
+                    synchronized (this) {
+                        version = pendingVersion;
+                        pendingVersion = -1;
+                        if (version < 0 || closed) {
+                            sending = false;
+                            return;
+                        }
+
+                        fromVersion = knownVersion;
+                    }
+
+                    if (version <= fromVersion) {
+                        continue;
+                    }
+
+                    // the update may carry changes newer than the offered version
+                    IReply.PingReply update = createUpdate(fromVersion);
+                    synchronized (this) {
+                        pushStartMillis = System.currentTimeMillis();
+                        pushTimedOut = false;
+                    }
+
+                    boolean failed = false;
+                    try {
+                        peer.callClientUpdate(update);
+                    } catch (RemoteException | RuntimeException e) {
+                        failed = true;
+                    }
+
+                    boolean reported;
+                    synchronized (this) {
+                        pushStartMillis = 0;
+                        reported = pushTimedOut;
+                        if (!failed && !reported) {
+                            knownVersion = update.getVersion();
+                            continue;
+                        }
+
+                        // if the peer survives, it is sent the full state next time
+                        knownVersion = -1;
+                        sending = false;
+                    }
+
+                    if (!reported) {
+                        logger.serverLog("Unable to push the game state to player ["
+                                + Player.getDisplayName(playerId) + "]");
+                        onPeerUnresponsive(playerId);
+                    }
+
+                    return;
+                }
+            }
+        }
+
+        public abstract IReply.JoinReply callPrimaryJoin(IPeer peer);
+
+        private MoveSequencer getMoveSequencer(int playerId) {
+            MoveSequencer[] sequencers = moveSequencers;
+            if (playerId < sequencers.length && sequencers[playerId] != null) {
+                return sequencers[playerId];
+            }
+
+            synchronized (gameStateLock) {
+                if (playerId >= moveSequencers.length) {
+                    moveSequencers = Arrays.copyOf(moveSequencers, Math.max(playerId + 1, moveSequencers.length * 2));
+                }
+
+                if (moveSequencers[playerId] == null) {
+                    moveSequencers[playerId] = new MoveSequencer();
+                }
+
+                return moveSequencers[playerId];
+            }
+        }
+
+        /**
+         * Orders the moves of one player by their sequence numbers, as the moves a client has
+         * in flight can arrive in any order.
+         */
+        private class MoveSequencer {
+
+            private long nextSequence;
+
+            /**
+             * Wait until the player's earlier moves have been applied. An earlier move that does not
+             * arrive within {@link #MOVE_ORDER_TIMEOUT} is given up on.
+             *
+             * @return false if a later move has already been applied
+             */
+            synchronized boolean awaitTurn(long sequence) {
+                long deadline = System.currentTimeMillis() + MOVE_ORDER_TIMEOUT;
+                while (sequence > nextSequence) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        nextSequence = sequence;
+                        break;
+                    }
+
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+
+                return sequence == nextSequence;
+            }
+
+            synchronized void advance(long sequence) {
+                nextSequence = sequence + 1;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Obtain and verify the player object from player ID and auth code
+         */
+        private Player authenticatePlayer(IPeer peer, int playerId, long authCode) {
+            Player player = gameState.searchById(playerId);
+
+            if (player == null || !serverSecrets.auth(peer, playerId, authCode)) {
+                // not found
+                return null;
+            }
+
+            return player;
+        }
+
+        public IReply.MoveReply callPrimaryMove(IPeer peer,
+                                                Move.Direction direction,
+                                                int playerId,
+                                                long authCode,
+                                                long sequence,
+                                                long knownVersion) {
+
+            IPeer backupServer = gameState.getServerConfig().getBackupServer();
+            if (backupServer == null) {
+                throw new Error("Backup Server is unavailable");
+            }
+
+            Player player = authenticatePlayer(peer, playerId, authCode);
+            if (player == null) {
+                logger.serverLog("Reject move request from player ID: " + playerId + " due to invalid ID or auth code.");
+                return IReply.MoveReply.createIllegal(getSnapshot());
+            }
+
+            // passed all preliminary checks
+            updatePeerAlive(playerId);
+            logger.serverLog("Player [" + Player.getDisplayName(playerId) + "] is making a move");
+
+            MoveSequencer sequencer = getMoveSequencer(playerId);
+            if (!sequencer.awaitTurn(sequence)) {
+                logger.serverLog("Reject move " + sequence + " from player [" + Player.getDisplayName(playerId)
+                        + "] as it arrived after the later ones.");
+                return createMoveReply(knownVersion, true);
+            }
+
+            boolean illegalMove;
+            try {
+                if (gameState.getRunningState() == RunningState.GAME_ENDED) {
+                    return createMoveReply(knownVersion, true);
+                }
+
+                // check and update game state; the game state only locks the regions
+                // touched by the move, so moves in different regions run in parallel
+                Move move = new Move(direction, playerId, sequence);
+                illegalMove = gameState.processMove(move, player);
+
+                // check for game ending
+                if (gameState.getRemainingTreasureCount() == 0) {
+                    logger.serverLog("Game Over");
+                    gameState.setRunningState(RunningState.GAME_ENDED);
+                }
+
+                publishChange();
+            } finally {
+                // the player's next move only waits for this one to be applied, not replicated
+                sequencer.advance(sequence);
+            }
+
+            boolean backupAlive = replicator.replicate();
+
+            synchronized (gameStateLock) {
+                if (!backupAlive) {
+                    // failed to update to backup
+                    // only try to promote if peer is not the primary server
+                    if (!peer.equals(self)) {
+                        if (promotePeerAsBackupIfNeeded(playerId, peer)) {
+                            return IReply.MoveReply.createPromoteToBackup(refreshSnapshot(), serverSecrets, illegalMove);
+                        }
+                    }
+                }
+
+                return createMoveReply(knownVersion, illegalMove);
+            }
+        }
+
+        /**
+         * @return whether backup is still up
+         */
+        protected boolean updateBackup() {
+            int backupPlayerId;
+            try {
+                synchronized (replicationLock) {
+                    if (backupCatchingUp) {
+                        // the backup is pulling the changes itself
+                        return true;
+                    }
+
+                    // the backup is only swapped while holding the replication lock
+                    IPeer backupServer = gameState.getServerConfig().getBackupServer();
+                    backupPlayerId = gameState.getServerConfig().getBackupPlayerId();
+
+                    if (backupVersion < 0) {
+                        // the backup has never been updated, e.g. when the game starts
+                        GameState fullState = refreshSnapshot();
+                        long secretsVersion = serverSecrets.getVersion();
+                        backupServer.callBackupUpdate(fullState, serverSecrets);
+                        backupVersion = fullState.getVersion();
+                        backupSecretsVersion = secretsVersion;
+                    } else {
+                        // send only the changes the backup has not seen yet; if they are no longer
+                        // logged, the mutations are null and the backup catches up on its own
+                        List<Mutation> mutations = gameState.getMutationsSince(backupVersion);
+                        // secrets only change on join, so they are usually left out
+                        ServerSecrets.Delta secretsChanges = serverSecrets.getChangesSince(backupSecretsVersion);
+                        long ackedVersion = backupServer.callBackupApply(mutations, secretsChanges);
+                        if (ackedVersion < 0) {
+                            logger.serverLog("Backup Server is too far behind. Letting it catch up.");
+                            backupCatchingUp = true;
+                        } else {
+                            backupVersion = ackedVersion;
+                            if (secretsChanges != null) {
+                                backupSecretsVersion = secretsChanges.getToVersion();
+                            }
+                        }
+                    }
+                }
+
+                if (backupCatchingUp) {
+                    // release the moves waiting for this update
+                    replicator.onBackupChanged();
+                }
+
+                updatePeerAlive(backupPlayerId);
+                return true;
+            } catch (RemoteException e) {
+                // backup died
+                synchronized (gameStateLock) {
+                    int deadPlayerId = gameState.getServerConfig().getBackupPlayerId();
+                    if (!promoteNewBackupServer) {
+                        setDead(deadPlayerId);
+                        checkIfLastPlayer();
+                        logger.serverLog("Backup Server cannot be reached");
+                        promoteNewBackupServer = true;
+                    }
+                }
+
+                replicator.onBackupChanged();
+                return false;
+            }
+        }
+
+        /**
+         * Forget what the backup server holds, so that the next update sends the full state.
+         */
+        private void resetBackupReplication() {
+            synchronized (replicationLock) {
+                backupCatchingUp = false;
+                backupVersion = -1;
+            }
+        }
+
+        /**
+         * Serve one step of the backup server catching up: a snapshot if the changes since its
+         * version are no longer logged, otherwise the logged changes, until there are none left.
+         * The backup reports its versions on every call, which is how the primary learns that it is in sync.
+         */
+        public IReply.CatchUpReply callPrimaryCatchUp(IPeer peer,
+                                                      int playerId,
+                                                      long authCode,
+                                                      long fromVersion,
+                                                      long secretsVersion) {
+
+            if (authenticatePlayer(peer, playerId, authCode) == null) {
+                logger.serverLog("Reject catch-up request from player ID: " + playerId + " due to invalid ID or auth code.");
+                return null;
+            }
+
+            updatePeerAlive(playerId);
+
+            IReply.CatchUpReply reply;
+            synchronized (replicationLock) {
+                if (playerId != gameState.getServerConfig().getBackupPlayerId()) {
+                    return null;
+                }
+
+                if (fromVersion >= gameState.getVersion() && secretsVersion >= serverSecrets.getVersion()) {
+                    backupVersion = fromVersion;
+                    backupSecretsVersion = secretsVersion;
+                    backupCatchingUp = false;
+                    reply = IReply.CatchUpReply.createInSync(fromVersion);
+                } else {
+                    List<Mutation> mutations = fromVersion < 0 ? null : gameState.getMutationsSince(fromVersion);
+                    if (mutations == null) {
+                        reply = IReply.CatchUpReply.createSnapshot(getSnapshot(), serverSecrets);
+                    } else {
+                        backupVersion = fromVersion;
+                        reply = IReply.CatchUpReply.createChanges(mutations,
+                                serverSecrets.getChangesSince(secretsVersion), gameState.getVersion());
+                    }
+                }
+            }
+
+            if (reply.isInSync()) {
+                logger.serverLog("Backup Server is in sync at version " + reply.getVersion());
+                replicator.onBackupChanged();
+            }
+
+            return reply;
+        }
+
+        /**
+         * @return whether the peer is the backup server, which alone may repair its state from this one
+         */
+        private boolean isBackupPeer(IPeer peer, int playerId, long authCode) {
+            if (authenticatePlayer(peer, playerId, authCode) == null
+                    || playerId != gameState.getServerConfig().getBackupPlayerId()) {
+                logger.serverLog("Reject repair request from player ID: " + playerId + " as it is not the Backup Server.");
+                return false;
+            }
+
+            updatePeerAlive(playerId);
+            return true;
+        }
+
+        public IReply.MerkleReply callPrimaryMerkleNodes(IPeer peer, int playerId, long authCode,
+                                                         long version, int[] nodes) {
+            if (!isBackupPeer(peer, playerId, authCode)) {
+                return null;
+            }
+
+            if (version < 0) {
+                // a new comparison: retain the current state until the next one
+                repairSnapshot = getSnapshot();
+            }
+
+            GameState state = getRepairSnapshot(version);
+            if (state == null) {
+                return null;
+            }
+
+            return IReply.MerkleReply.create(state, nodes);
+        }
+
+        public StateRepair callPrimaryRepair(IPeer peer, int playerId, long authCode, long version, int[] leaves) {
+            if (!isBackupPeer(peer, playerId, authCode)) {
+                return null;
+            }
+
+            GameState state = getRepairSnapshot(version);
+            if (state == null) {
+                return null;
+            }
+
+            return state.createRepair(leaves);
+        }
+
+        /**
+         * @return the state retained for comparing Merkle trees, if it has the given version
+         * (or any, for -1), otherwise null
+         */
+        private GameState getRepairSnapshot(long version) {
+            GameState state = repairSnapshot;
+            if (state == null || (version >= 0 && state.getVersion() != version)) {
+                return null;
+            }
+
+            return state;
+        }
+
+        /**
+         * @return the number of committed changes the backup server has not acknowledged yet, or
+         * {@link Long#MAX_VALUE} if it is not known what the backup holds, so it needs the full state
+         */
+        public long getReplicationLag() {
+            if (gameState == null) {
+                return 0;
+            }
+
+            long ackedVersion = backupVersion;
+            if (ackedVersion < 0) {
+                return Long.MAX_VALUE;
+            }
+
+            return Math.max(0, gameState.getVersion() - ackedVersion);
+        }
+
+        /**
+         * Called when receive a request from player, so know that it's alive.
+         */
+        protected void updatePeerAlive(int playerId) {
+            long[] lastAccessMillis = peerLastAccessMillis;
+            if (playerId < 0 || playerId >= lastAccessMillis.length) {
+                return;
+            }
+
+            lastAccessMillis[playerId] = System.currentTimeMillis();
+        }
+
+        /**
+         * Make room for tracking the liveness of the given number of players.
+         * Called when players are added, so that {@link #updatePeerAlive(int)} never needs to grow the array.
+         */
+        protected void ensurePeerCapacity(int playerCount) {
+            synchronized (gameStateLock) {
+                if (playerCount > peerLastAccessMillis.length) {
+                    peerLastAccessMillis = Arrays.copyOf(peerLastAccessMillis,
+                            Math.max(playerCount, peerLastAccessMillis.length * 2));
+                }
+            }
+        }
+
+        /**
+         * Check the liveliness statuses of the peers
+         */
+        protected void doPulseCheck() {
+            long replicationLag = getReplicationLag();
+            if (replicationLag == Long.MAX_VALUE) {
+                if (!promoteNewBackupServer) {
+                    logger.serverLog("Backup Server has not received the game state yet");
+                }
+            } else if (replicationLag > 0) {
+                logger.serverLog("Backup Server is " + replicationLag + " changes behind");
+            }
+
+            gameState.getPlayerList().forEach(player -> {
+                if (!player.isAlive()) {
+                    return;
+                }
+
+                int playerId = player.getId();
+                long lastAccessMillis = playerId < peerLastAccessMillis.length ? peerLastAccessMillis[playerId] : 0;
+                if (lastAccessMillis == 0) {
+                    return;
+                }
+
+                long silentPeriod = System.currentTimeMillis() - lastAccessMillis;
+                if (silentPeriod > 2 * PING_INTERVAL) {
+                    onPeerUnresponsive(playerId);
+                }
+            });
+
+            checkPushes();
+            compact();
+        }
+
+        /**
+         * Treat the peers whose pushed update has not returned within {@link #PUSH_TIMEOUT} as
+         * unresponsive.
+         */
+        private void checkPushes() {
+            long nowMillis = System.currentTimeMillis();
+            PeerChannel[] channels = peerChannels;
+            for (PeerChannel channel : channels) {
+                if (channel != null && channel.checkTimeout(nowMillis)) {
+                    logger.serverLog("Pushing the game state to player ["
+                            + Player.getDisplayName(channel.playerId) + "] timed out");
+                    onPeerUnresponsive(channel.playerId);
+                }
+            }
+        }
+
+        /**
+         * Handle a peer that stopped responding: a normal player is marked dead, while the
+         * backup server is retried first.
+         */
+        protected void onPeerUnresponsive(int playerId) {
+            if (isSelf(playerId)) {
+                // peer is primary server. ignoring.
+            } else if (playerId == gameState.getServerConfig().getBackupPlayerId()) {
+                if (promoteNewBackupServer) {
+                    // already known dead, waiting for a replacement
+                    return;
+                }
+
+                logger.serverLog("Backup Server seems dormant. Retrying.");
+                resetBackupReplication();
+                if (!updateBackup()) {
+                    setDead(playerId);
+                    checkIfLastPlayer();
+                }
+            } else {
+                setDead(playerId);
+                checkIfLastPlayer();
+                logger.serverLog("Player [" + Player.getDisplayName(playerId) + "] seems dormant.");
+            }
+        }
+
+        /**
+         * Release what is held for dead players, and drop the claimed treasures from the game state
+         * once there are enough of them. Both reach the backup with the next update.
+         */
+        private void compact() {
+            boolean compacted = false;
+
+            synchronized (gameStateLock) {
+                for (Player player : gameState.getPlayerList()) {
+                    int playerId = player.getId();
+                    if (!player.isAlive() && serverSecrets.getPeer(playerId) != null) {
+                        serverSecrets.release(playerId);
+                        closePeerChannel(playerId);
+                        if (playerId < peerLastAccessMillis.length) {
+                            peerLastAccessMillis[playerId] = 0;
+                        }
+                    }
+                }
+
+                if (gameState.getClaimedTreasureCount() >= Math.max(MIN_COMPACTION_COUNT, gameState.getRemainingTreasureCount())) {
+                    int removed = gameState.compact();
+                    publishChange();
+                    logger.serverLog("Compacted " + removed + " claimed treasures");
+                    compacted = true;
+                }
+            }
+
+            if (compacted) {
+                replicator.replicate();
+            }
+        }
+
+        private void checkIfLastPlayer() {
+            int count = getAliveCount();
+            if (count <= 1) {
+                logger.serverLog("Game ending because there is no more player");
+                synchronized (gameStateLock) {
+                    gameState.setRunningState(RunningState.GAME_ENDED);
+                    publishChange();
+                }
+            }
+        }
+
+        /**
+         * Attempt to check and promote a peer as backup.
+         *
+         * @return true if promoted
+         */
+        protected boolean promotePeerAsBackupIfNeeded(int playerId, IPeer peer) {
+            if (promoteNewBackupServer) {
+                // the peer is me!
+                if (playerId == getSelfPlayerId()) {
+                    return false;
+                }
+
+                synchronized (gameStateLock) {
+                    if (promoteNewBackupServer) {
+                        synchronized (replicationLock) {
+                            gameState.setBackup(playerId, peer);
+                            gameState.setPlayerStatus(playerId, true, PeerRole.BACKUP_SERVER);
+                            publishChange();
+
+                            // the new backup starts from the snapshot and secrets sent in the promotion reply,
+                            // which are at least this recent, then pulls the changes made since
+                            backupVersion = gameState.getVersion();
+                            backupSecretsVersion = serverSecrets.getVersion();
+                            backupCatchingUp = true;
+                            promoteNewBackupServer = false;
+                        }
+
+                        replicator.onBackupChanged();
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Decides when the committed changes are sent to the backup server.
+         */
+        protected abstract class BackupReplicator {
+
+            /**
+             * Called after every committed change.
+             *
+             * @return whether the backup is still up
+             */
+            public abstract boolean replicate();
+
+            /**
+             * Called when the backup server was found dead or has been replaced.
+             */
+            public void onBackupChanged() {
+
+            }
+        }
+
+        /**
+         * Every change is on the backup before the move is replied to.
          */
-        private Player authenticatePlayer(IPeer peer, String playerId, String authCode) {
-            Player player = gameState.searchById(playerId);
+        private class SyncReplicator extends BackupReplicator {
 
-            if (player == null || !serverSecrets.auth(peer, playerId, authCode)) {
-                // not found
-                return null;
+            @Override
+            public boolean replicate() {
+                return updateBackup();
             }
-
-            return player;
         }
 
-        public IReply.MoveReply callPrimaryMove(IPeer peer,
-                                                Move.Direction direction,
-                                                String playerId,
-                                                String authCode) {
-
-            synchronized (gameStateLock) {
-                IPeer backupServer = gameState.getServerConfig().getBackupServer();
-                if (backupServer == null) {
-                    throw new Error("Backup Server is unavailable");
-                }
-
-                Player player = authenticatePlayer(peer, playerId, authCode);
-                if (player == null) {
-                    logger.serverLog("Reject move request from player ID: " + playerId + " due to invalid ID or auth code.");
-                    return IReply.MoveReply.createIllegal(gameState);
-                }
+        /**
+         * Changes are sent by a dedicated sender, which keeps batching everything committed since
+         * the last acknowledgement into the next call, so moves are not held up by the round trip
+         * to the backup. A move only waits when the backup is more than maxLag changes behind, or
+         * has not received the full state yet, which bounds how much can be lost if the primary dies.
+         */
+        private class BoundedAsyncReplicator extends BackupReplicator {
 
-                // passed all preliminary checks
-                updatePeerAlive(peer);
-                logger.serverLog("Player [" + playerId + "] is making a move");
+            private final int maxLag;
 
-                if (gameState.getRunningState() == RunningState.GAME_ENDED) {
-                    return IReply.MoveReply.createIllegal(gameState);
-                }
+            private final Object senderLock = new Object();
 
+            private boolean senderStarted;
 
-                // check and update game state
-                Move move = new Move(direction, playerId);
-                boolean illegalMove = gameState.processMove(move, player);
+            public BoundedAsyncReplicator(int maxLag) {
+                this.maxLag = maxLag;
+            }
 
-                // check for game ending
-                boolean gameEnded = true;
-                for (Treasure oneTreasure : gameState.getTreasureList()) {
-                    if (oneTreasure.getAssignedPlayerId() == null) {
-                        gameEnded = false;
+            @Override
+            public boolean replicate() {
+                synchronized (senderLock) {
+                    if (!senderStarted) {
+                        senderStarted = true;
+                        exec.execute(this::runSender);
                     }
-                }
 
-                if (gameEnded) {
-                    logger.serverLog("Game Over");
-                    gameState.setRunningState(RunningState.GAME_ENDED);
-                }
+                    senderLock.notifyAll();
 
-                if (!updateBackup()) {
-                    // failed to update to backup
-                    // only try to promote if peer is not the primary server
-                    if (!peer.equals(self)) {
-                        if (promotePeerAsBackupIfNeeded(playerId, peer)) {
-                            return IReply.MoveReply.createPromoteToBackup(gameState, serverSecrets, illegalMove);
+                    // apply back pressure only when the backup falls too far behind
+                    while (!promoteNewBackupServer && !backupCatchingUp && getReplicationLag() > maxLag) {
+                        try {
+                            senderLock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
                         }
                     }
                 }
 
-                return IReply.MoveReply.createReply(gameState, illegalMove);
+                return !promoteNewBackupServer;
             }
-        }
 
-        /**
-         * @return whether backup is still up
-         */
-        protected boolean updateBackup() {
-            synchronized (gameStateLock) {
-                IPeer backupServer = gameState.getServerConfig().getBackupServer();
+            @Override
+            public void onBackupChanged() {
+                synchronized (senderLock) {
+                    senderLock.notifyAll();
+                }
+            }
+
+            private void runSender() {
                 try {
-                    backupServer.callBackupUpdate(gameState, serverSecrets);
-                    updatePeerAlive(backupServer);
-                    return true;
-                } catch (RemoteException e) {
-                    // backup died
-                    setDead(gameState.getServerConfig().getBackupPlayerId());
-                    checkIfLastPlayer();
-                    logger.serverLog("Backup Server cannot be reached");
-                    promoteNewBackupServer = true;
-                    return false;
+                    while (true) {
+                        synchronized (senderLock) {
+                            while (promoteNewBackupServer || backupCatchingUp || getReplicationLag() == 0) {
+                                senderLock.wait();
+                            }
+                        }
+
+                        updateBackup();
+
+                        synchronized (senderLock) {
+                            senderLock.notifyAll();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             }
         }
 
         /**
-         * Called when receive a request from player, so know that it's alive.
+         * Moves are replied to only after the backup has them, like {@link SyncReplicator}, but the
+         * first move of a group waits up to windowMillis for others (or until batchSize moves have
+         * joined), then sends all of them in one call and releases the whole group on the
+         * acknowledgement. Under many concurrent moves this costs about one backup round trip per group.
          */
-        protected void updatePeerAlive(IPeer peer) {
-            peerLastAccessMillis.put(peer, System.currentTimeMillis());
-        }
+        private class GroupCommitReplicator extends BackupReplicator {
 
-        /**
-         * Check the liveliness statuses of the peers
-         */
-        protected void doPulseCheck() {
-            gameState.getPlayerList().forEach(player -> {
-                if (!player.isAlive()) {
-                    return;
-                }
+            private final long windowMillis;
 
-                IPeer peer = serverSecrets.getPeers().get(player.getId());
-                Long lastAccessMillis = peerLastAccessMillis.get(peer);
-                if (lastAccessMillis == null) {
-                    return;
+            private final int batchSize;
+
+            private final Object groupLock = new Object();
+
+            /**
+             * Whether a leader is collecting the current group. Moves arriving after it stops
+             * collecting start the next group.
+             */
+            private boolean collecting;
+
+            private int groupSize;
+
+            public GroupCommitReplicator(long windowMillis, int batchSize) {
+                this.windowMillis = windowMillis;
+                this.batchSize = batchSize;
+            }
+
+            @Override
+            public boolean replicate() {
+                // the move has been committed already, so any flush started from now on carries it
+                long targetVersion = gameState.getVersion();
+                boolean leader;
+
+                synchronized (groupLock) {
+                    leader = !collecting;
+                    collecting = true;
+                    groupSize++;
+                    if (groupSize >= batchSize) {
+                        groupLock.notifyAll();
+                    }
                 }
 
-                long silentPeriod = System.currentTimeMillis() - lastAccessMillis;
-                if (silentPeriod > 2 * PING_INTERVAL) {
-                    if (isSelf(player.getId())) {
-                        // peer is primary server. ignoring.
-                    } else if (player.getId().equals(gameState.getServerConfig().getBackupPlayerId())) {
-                        logger.serverLog("Backup Server seems dormant. Retrying.");
-                        if (!updateBackup()) {
-                            setDead(player.getId());
-                            checkIfLastPlayer();
+                if (leader) {
+                    synchronized (groupLock) {
+                        long deadline = System.currentTimeMillis() + windowMillis;
+                        long remaining = windowMillis;
+                        while (groupSize < batchSize && remaining > 0) {
+                            if (!awaitGroup(remaining)) {
+                                break;
+                            }
+                            remaining = deadline - System.currentTimeMillis();
                         }
-                    } else {
-                        setDead(player.getId());
-                        checkIfLastPlayer();
-                        logger.serverLog("Player [" + player.getId() + "] seems dormant.");
+
+                        collecting = false;
+                        groupSize = 0;
                     }
+
+                    boolean backupAlive = updateBackup();
+                    synchronized (groupLock) {
+                        groupLock.notifyAll();
+                    }
+
+                    return backupAlive;
                 }
-            });
-        }
 
-        private void checkIfLastPlayer() {
-            int count = getAliveCount();
-            if (count <= 1) {
-                logger.serverLog("Game ending because there is no more player");
-                synchronized (gameStateLock) {
-                    gameState.setRunningState(RunningState.GAME_ENDED);
+                synchronized (groupLock) {
+                    while (!promoteNewBackupServer && !backupCatchingUp && backupVersion < targetVersion) {
+                        if (!awaitGroup(0)) {
+                            break;
+                        }
+                    }
                 }
+
+                return !promoteNewBackupServer;
             }
-        }
 
-        /**
-         * Attempt to check and promote a peer as backup.
-         *
-         * @return true if promoted
-         */
-        protected boolean promotePeerAsBackupIfNeeded(String playerId, IPeer peer) {
-            if (promoteNewBackupServer) {
-                // the peer is me!
-                if (playerId.equals(getSelfPlayerId())) {
-                    return false;
+            @Override
+            public void onBackupChanged() {
+                synchronized (groupLock) {
+                    groupLock.notifyAll();
                 }
+            }
 
-                synchronized (gameStateLock) {
-                    if (promoteNewBackupServer) {
-                        promoteNewBackupServer = false;
-                        gameState.getServerConfig().setBackup(playerId, peer);
-                        Player player = gameState.searchById(playerId);
-                        player.setAlive(true);
-                        player.setRole(PeerRole.BACKUP_SERVER);
-                        return true;
-                    }
+            /**
+             * Wait on the group lock, which must be held.
+             *
+             * @return false if interrupted
+             */
+            private boolean awaitGroup(long timeoutMillis) {
+                try {
+                    groupLock.wait(timeoutMillis);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
             }
-
-            return false;
         }
 
-        public IReply.PingReply callPrimaryPing(IPeer peer, String playerId, String authCode) {
+        public IReply.PingReply callPrimaryPing(IPeer peer, int playerId, long authCode, long knownVersion) {
             Player player = authenticatePlayer(peer, playerId, authCode);
             if (player == null) {
                 logger.serverLog("Receive illegal ping from player ID: " + playerId + " due to invalid ID or auth code.");
-                return IReply.PingReply.createUpdate(gameState);
+                return IReply.PingReply.createUpdate(getSnapshot());
             }
 
-            updatePeerAlive(peer);
+            updatePeerAlive(playerId);
 
             if (isSelf(playerId)) {
-                return IReply.PingReply.createUpdate(gameState);
+                return createUpdate(knownVersion);
             }
 
             boolean promoted = promotePeerAsBackupIfNeeded(playerId, peer);
             if (promoted) {
-                logger.serverLog("Promoting [" + playerId + "] as Backup Server");
-                return IReply.PingReply.createPromoteToBackup(gameState, serverSecrets);
+                logger.serverLog("Promoting [" + Player.getDisplayName(playerId) + "] as Backup Server");
+                return IReply.PingReply.createPromoteToBackup(refreshSnapshot(), serverSecrets);
             } else {
-                return IReply.PingReply.createUpdate(gameState);
+                return createUpdate(knownVersion);
+            }
+        }
+
+        public IReply.PingReply callPrimaryHeartbeat(IPeer peer, int playerId, long authCode) {
+            // reading from the current version gives a matching version and hash without copying the state
+            IReply.PingReply reply = callPrimaryPing(peer, playerId, authCode, gameState.getVersion());
+            if (reply.getPromotionStatus() != IReply.PingReply.PromotionStatus.NONE) {
+                // the promoted peer needs the full state
+                return reply;
             }
+
+            return IReply.PingReply.createAcknowledge(reply.getVersion(), reply.getStateHash());
         }
 
 
@@ -676,22 +2131,38 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
      */
     private class BootstrappingPrimaryServer extends PrimaryServer {
 
-        private final AtomicLong nextPlayerIds = new AtomicLong(0);
+        private final Random boardRandom;
+
+        private final Random authCodeRandom;
 
         private final int treasureCount;
 
         private final int initialWaitSeconds;
 
-        private String bootstrappingPlayerId;
+        /**
+         * The first joining peer is the bootstrapping peer itself, so it gets the first handle.
+         */
+        private final int bootstrappingPlayerId = 0;
 
         /**
          * Creating the server, supplying the board size and treasure count from command-line arguments.
+         * With a non-null seed, the board and the auth codes are generated deterministically; player IDs
+         * are always assigned in join order.
          */
-        public BootstrappingPrimaryServer(int boardSize, int treasureCount, int initialWaitSeconds) {
+        public BootstrappingPrimaryServer(int boardSize, int treasureCount, int initialWaitSeconds, Long seed) {
             this.gameState = new GameState(boardSize);
             this.serverSecrets = new ServerSecrets();
             this.treasureCount = treasureCount;
             this.initialWaitSeconds = initialWaitSeconds;
+
+            if (seed != null) {
+                logger.serverLog("Running in seeded mode with seed " + seed);
+                this.boardRandom = new Random(seed);
+                this.authCodeRandom = new Random(~seed);
+            } else {
+                this.boardRandom = new Random();
+                this.authCodeRandom = new SecureRandom();
+            }
         }
 
         public void start() {
@@ -699,10 +2170,9 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
         }
 
         public void startAccepting() {
-            bootstrappingPlayerId = getNextPlayerId();
-
             gameState.setRunningState(RunningState.ACCEPTING_PLAYERS);
-            gameState.getServerConfig().setPrimary(bootstrappingPlayerId, self);
+            gameState.setPrimary(bootstrappingPlayerId, self);
+            publishChange();
 
             logger.serverLog("Start accepting connections for 20 seconds");
 
@@ -725,40 +2195,37 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
             synchronized (gameStateLock) {
                 if (gameState.getRunningState() == RunningState.ACCEPTING_PLAYERS) {
                     // generate player ID and auth code for this player
-                    String authCode = getNextAuthCode();
+                    long authCode = getNextAuthCode();
 
-                    Player player = new Player(null, 0, 0, 0, true, PeerRole.NON_SERVER);
-
-                    // If this is the first peer, it's the primary server
-                    if (gameState.getPlayerList().isEmpty()) {
-                        player.setId(bootstrappingPlayerId);
-                        player.setRole(PeerRole.PRIMARY_SERVER);
-                    } else {
-                        player.setId(getNextPlayerId());
-                    }
-
-                    String playerId = player.getId();
+                    // If this is the first peer, it's the primary server.
+                    // If this is the second peer, it's the backup server
+                    int nextPlayerId = gameState.getPlayerList().size();
+                    boolean becomeBackup = nextPlayerId == bootstrappingPlayerId + 1;
+                    PeerRole role = nextPlayerId == bootstrappingPlayerId ? PeerRole.PRIMARY_SERVER
+                            : becomeBackup ? PeerRole.BACKUP_SERVER
+                            : PeerRole.NON_SERVER;
 
-                    gameState.getPlayerList().add(player);
+                    Player player = gameState.addPlayer(role);
+                    int playerId = player.getId();
 
                     // update the server secrets
-                    serverSecrets.getAuthCodes().put(playerId, authCode);
-                    serverSecrets.getPeers().put(playerId, peer);
+                    serverSecrets.register(playerId, authCode, peer);
+                    ensurePeerCapacity(playerId + 1);
+                    openPeerChannel(playerId, peer);
 
-                    // If this is the second peer, it's the backup server
-                    boolean becomeBackup = gameState.getPlayerList().size() == 2;
                     if (becomeBackup) {
-                        player.setRole(PeerRole.BACKUP_SERVER);
-                        logger.serverLog("Adding player [" + playerId + "] and designating it as Backup Server");
-                        gameState.getServerConfig().setBackup(playerId, peer);
-                        return IReply.JoinReply.createApproveAsBackupReply(playerId, authCode);
+                        logger.serverLog("Adding player [" + Player.getDisplayName(playerId) + "] and designating it as Backup Server");
+                        gameState.setBackup(playerId, peer);
+                        publishChange();
+                        return IReply.JoinReply.createApproveAsBackupReply(playerId, authCode, gameState.getVersion());
                     } else {
-                        logger.serverLog("Adding player [" + playerId + "]");
-                        return IReply.JoinReply.createApproveAsNormalReply(playerId, authCode);
+                        logger.serverLog("Adding player [" + Player.getDisplayName(playerId) + "]");
+                        publishChange();
+                        return IReply.JoinReply.createApproveAsNormalReply(playerId, authCode, gameState.getVersion());
                     }
                 } else {
                     logger.serverLog("Rejecting a new peer attempting to join");
-                    return IReply.JoinReply.createDeclineReply();
+                    return IReply.JoinReply.createDeclineReply(gameState.getVersion());
                 }
             }
         }
@@ -771,43 +2238,49 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
                     return;
                 }
 
+                try {
+                    gameState.initRandom(treasureCount, boardRandom);
+                } catch (IllegalStateException e) {
+                    logger.serverLogError("Unable to place all players on the board.", e);
+                    return;
+                }
+
                 logger.serverLog("Game is started. No longer accepting players.");
-                gameState.initRandom(treasureCount);
                 gameState.setRunningState(RunningState.GAME_STARTED);
+                publishChange();
 
                 updateBackup();
 
-                // signalling all peers
-                Map<String, IPeer> peerMap = serverSecrets.getPeers();
+                // signalling all peers, with the state as started
+                GameState startedState = refreshSnapshot();
                 for (Player player : gameState.getPlayerList()) {
                     try {
-                        IPeer peer = peerMap.get(player.getId());
+                        IPeer peer = serverSecrets.getPeer(player.getId());
                         if (peer == null) {
                             throw new Error("IPeer was not saved for this ID: " + player.getId());
                         }
 
-                        peer.callClientGameStarted(gameState);
-                        updatePeerAlive(peer);
+                        peer.callClientGameStarted(startedState);
+                        updatePeerAlive(player.getId());
 
                     } catch (RemoteException e) {
                         // peer has died
-                        logger.serverLog("Failed to signal player [" + player.getId() + "]");
-                        player.setAlive(false);
+                        logger.serverLog("Failed to signal player [" + Player.getDisplayName(player.getId()) + "]");
+                        gameState.setPlayerStatus(player.getId(), false, player.getRole());
                     }
                 }
 
+                publishChange();
+
                 logger.serverLog("Finished signalling all peers");
             }
 
             startPulseChecking();
+            startBroadcasting();
         }
 
-        protected final String getNextPlayerId() {
-            return "Player-" + nextPlayerIds.incrementAndGet();
-        }
-
-        protected final String getNextAuthCode() {
-            return "AUTH-" + UUID.randomUUID().toString();
+        protected final long getNextAuthCode() {
+            return authCodeRandom.nextLong();
         }
 
     }
@@ -820,19 +2293,33 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
 
         public InheritingPrimaryServer(GameState gameState, ServerSecrets serverSecrets) {
             logger.serverLog("Starting Primary Server");
-            this.gameState = gameState;
+            // the client keeps reading the state it received, so the server works on its own copy
+            this.gameState = gameState.copy();
             this.serverSecrets = serverSecrets;
+            ensurePeerCapacity(gameState.getPlayerList().size());
+            for (Player player : gameState.getPlayerList()) {
+                IPeer peer = serverSecrets.getPeer(player.getId());
+                if (player.isAlive() && peer != null) {
+                    openPeerChannel(player.getId(), peer);
+                }
+            }
+
+            publishChange();
         }
 
         public void start() {
+            // nothing is known of what the backup holds, so it is sent the full state at once
+            // rather than on the next move
+            exec.execute(this::updateBackup);
             startPulseChecking();
+            startBroadcasting();
         }
 
         @Override
         public IReply.JoinReply callPrimaryJoin(IPeer peer) {
             // No longer accepts joining
             logger.serverLog("Rejecting a new peer attempting to join");
-            return IReply.JoinReply.createDeclineReply();
+            return IReply.JoinReply.createDeclineReply(gameState.getVersion());
         }
 
     }
@@ -852,17 +2339,49 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
         @Override
         public IReply.MoveReply callPrimaryMove(IPeer peer,
                                                 Move.Direction direction,
-                                                String playerId,
-                                                String authCode) {
+                                                int playerId,
+                                                long authCode,
+                                                long sequence,
+                                                long knownVersion) {
 
             throw new IllegalStateException("Invalid Method Call");
         }
 
         @Override
         public IReply.PingReply callPrimaryPing(IPeer peer,
-                                                String playerId,
-                                                String authCode) {
+                                                int playerId,
+                                                long authCode,
+                                                long knownVersion) {
+
+            throw new IllegalStateException("Invalid Method Call");
+        }
+
+        @Override
+        public IReply.PingReply callPrimaryHeartbeat(IPeer peer,
+                                                     int playerId,
+                                                     long authCode) {
+
+            throw new IllegalStateException("Invalid Method Call");
+        }
+
+        @Override
+        public IReply.CatchUpReply callPrimaryCatchUp(IPeer peer,
+                                                      int playerId,
+                                                      long authCode,
+                                                      long fromVersion,
+                                                      long secretsVersion) {
+
+            throw new IllegalStateException("Invalid Method Call");
+        }
+
+        @Override
+        public IReply.MerkleReply callPrimaryMerkleNodes(IPeer peer, int playerId, long authCode,
+                                                         long version, int[] nodes) {
+            throw new IllegalStateException("Invalid Method Call");
+        }
 
+        @Override
+        public StateRepair callPrimaryRepair(IPeer peer, int playerId, long authCode, long version, int[] leaves) {
             throw new IllegalStateException("Invalid Method Call");
         }
     }
@@ -875,13 +2394,197 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
             synchronized (gameStateLock) {
                 this.gameState = gameState;
                 this.serverSecrets = serverSecrets;
+                publishChange();
+            }
+        }
+
+        /**
+         * Whether {@link #catchUp()} is running.
+         */
+        private boolean catchingUp;
+
+        public long callBackupApply(List<Mutation> mutations, ServerSecrets.Delta secretsChanges) {
+            synchronized (gameStateLock) {
+                long version = applyChanges(mutations, secretsChanges);
+                if (version < 0) {
+                    startCatchUp();
+                }
+
+                return version;
+            }
+        }
+
+        /**
+         * @return the version of the game state after applying the changes, or -1 if they cannot be applied
+         */
+        private long applyChanges(List<Mutation> mutations, ServerSecrets.Delta secretsChanges) {
+            synchronized (gameStateLock) {
+                if (gameState == null || mutations == null) {
+                    // no full update received yet, or the changes are no longer logged
+                    return -1;
+                }
+
+                if (secretsChanges != null && !serverSecrets.apply(secretsChanges)) {
+                    logger.serverLog("Missing earlier changes to the server secrets.");
+                    return -1;
+                }
+
+                for (Mutation mutation : mutations) {
+                    if (mutation.getVersion() <= gameState.getVersion()) {
+                        // already applied
+                        continue;
+                    }
+
+                    if (!gameState.apply(mutation)) {
+                        logger.serverLog("Unable to apply update version " + mutation.getVersion() + ".");
+                        return -1;
+                    }
+                }
+
+                publishChange();
+                return gameState.getVersion();
+            }
+        }
+
+        /**
+         * Start pulling the changes from the primary server in the background, unless already doing so.
+         */
+        protected final void startCatchUp() {
+            synchronized (gameStateLock) {
+                if (catchingUp) {
+                    return;
+                }
+
+                catchingUp = true;
+            }
+
+            exec.execute(this::catchUp);
+        }
+
+        /**
+         * Install a snapshot if needed, then pull the logged changes until the primary server confirms
+         * that this backup is in sync.
+         */
+        private void catchUp() {
+            logger.serverLog("Catching up with Primary Server");
+            boolean needSnapshot = false;
+
+            try {
+                while (true) {
+                    IPeer primaryServer;
+                    long fromVersion;
+                    long secretsVersion;
+                    synchronized (gameStateLock) {
+                        GameState state = gameState != null ? gameState : gameClient.gameState;
+                        if (state == null) {
+                            return;
+                        }
+
+                        primaryServer = state.getServerConfig().getPrimaryServer();
+                        fromVersion = gameState == null || needSnapshot ? -1 : gameState.getVersion();
+                        secretsVersion = serverSecrets == null || needSnapshot ? -1 : serverSecrets.getVersion();
+                    }
+
+                    IReply.CatchUpReply reply = primaryServer.callPrimaryCatchUp(self,
+                            gameClient.getPlayerId(), gameClient.getAuthCode(), fromVersion, secretsVersion);
+
+                    if (reply == null) {
+                        logger.serverLog("Catch-up was declined by Primary Server");
+                        return;
+                    }
+
+                    if (reply.isInSync()) {
+                        logger.serverLog("Backup Server is in sync at version " + reply.getVersion());
+                        return;
+                    }
+
+                    if (reply.getGameState() != null) {
+                        callBackupUpdate(reply.getGameState(), reply.getServerSecrets());
+                        needSnapshot = false;
+                    } else if (applyChanges(reply.getMutations(), reply.getSecretsChanges()) < 0) {
+                        // this copy diverged: repair the parts that differ, or start over from a snapshot
+                        needSnapshot = !repairFromPrimary(primaryServer);
+                    }
+                }
+            } catch (RemoteException e) {
+                logger.serverLog("Primary Server cannot be reached while catching up");
+            } finally {
+                synchronized (gameStateLock) {
+                    catchingUp = false;
+                }
+            }
+        }
+
+        /**
+         * Compare the Merkle trees of the game state with the primary server from the root down,
+         * descending only into the nodes that differ, then fetch the content of the differing leaves.
+         *
+         * @return whether this copy now equals the primary's
+         */
+        private boolean repairFromPrimary(IPeer primaryServer) throws RemoteException {
+            int selfId = gameClient.getPlayerId();
+            long selfAuthCode = gameClient.getAuthCode();
+
+            // every level is compared with the version the primary pinned for the root
+            long version = -1;
+            int[] nodes = {1};
+            int[] leaves = new int[GameState.MERKLE_LEAF_COUNT];
+            int leafCount = 0;
+            while (nodes.length > 0) {
+                IReply.MerkleReply reply = primaryServer.callPrimaryMerkleNodes(self, selfId, selfAuthCode, version, nodes);
+                if (reply == null) {
+                    return false;
+                }
+
+                version = reply.getVersion();
+                long[] primaryHashes = reply.getHashes();
+
+                long[] localHashes;
+                synchronized (gameStateLock) {
+                    localHashes = gameState.getMerkleNodes(nodes);
+                }
+
+                int[] children = new int[2 * nodes.length];
+                int childCount = 0;
+                for (int i = 0; i < nodes.length; i++) {
+                    if (primaryHashes[i] == localHashes[i]) {
+                        continue;
+                    }
+
+                    if (nodes[i] >= GameState.MERKLE_LEAF_COUNT) {
+                        leaves[leafCount++] = nodes[i] - GameState.MERKLE_LEAF_COUNT;
+                    } else {
+                        children[childCount++] = 2 * nodes[i];
+                        children[childCount++] = 2 * nodes[i] + 1;
+                    }
+                }
+
+                nodes = Arrays.copyOf(children, childCount);
+            }
+
+            StateRepair repair = primaryServer.callPrimaryRepair(self, selfId, selfAuthCode, version,
+                    Arrays.copyOf(leaves, leafCount));
+            if (repair == null) {
+                return false;
+            }
+
+            synchronized (gameStateLock) {
+                if (!gameState.applyRepair(repair)) {
+                    logger.serverLog("Unable to repair the game state from Primary Server.");
+                    return false;
+                }
+
+                publishChange();
             }
+
+            logger.serverLog("Repaired " + repair.size() + " players and treasures from Primary Server");
+            return true;
         }
 
         /**
          * Obtain and verify the player object from player ID and auth code
          */
-        protected Player authenticatePlayer(IPeer peer, String playerId, String authCode) {
+        protected Player authenticatePlayer(IPeer peer, int playerId, long authCode) {
             Player player = gameState.searchById(playerId);
 
             if (player == null || !serverSecrets.auth(peer, playerId, authCode)) {
@@ -892,19 +2595,42 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
             return player;
         }
 
+        /**
+         * Serve a game state read as a replica of the primary server.
+         */
+        public IReply.PingReply callBackupRead(IPeer peer,
+                                               int playerId,
+                                               long authCode,
+                                               long minVersion,
+                                               long knownVersion) {
+
+            GameState state = gameState;
+            if (state == null || state.getVersion() < minVersion) {
+                // not a backup yet, or too far behind to serve this reader
+                return null;
+            }
+
+            if (state.searchById(playerId) == null || !serverSecrets.auth(peer, playerId, authCode)) {
+                logger.serverLog("Receive illegal read from player ID: " + playerId + " due to invalid ID or auth code.");
+                return null;
+            }
+
+            return createUpdate(knownVersion);
+        }
+
         public IReply.PingReply callBackupOnPrimaryDied(IPeer peer,
-                                                        String playerId,
-                                                        String authCode,
+                                                        int playerId,
+                                                        long authCode,
                                                         IPeer deadPrimary) {
 
             if (!gameState.isActive()) {
-                return IReply.PingReply.createUpdate(gameState);
+                return IReply.PingReply.createUpdate(getSnapshot());
             }
 
             Player player = authenticatePlayer(peer, playerId, authCode);
             if (player == null) {
                 logger.serverLog("Receive PrimaryDied notification from invalid peer, ID : " + playerId);
-                return IReply.PingReply.createUpdate(gameState);
+                return IReply.PingReply.createUpdate(getSnapshot());
             }
 
             if (deadPrimary.equals(gameState.getServerConfig().getPrimaryServer())) {
@@ -913,24 +2639,24 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
                     if (deadPrimary.equals(primaryServer)) {
                         // ping primary to see if it really died.
                         try {
-                            primaryServer.callPrimaryPing(self, gameClient.getPlayerId(), gameClient.getAuthCode());
+                            primaryServer.callPrimaryHeartbeat(self, gameClient.getPlayerId(), gameClient.getAuthCode());
                         } catch (RemoteException e) {
                             setDead(gameState.getServerConfig().getPrimaryPlayerId());
                             checkIfLastPlayer();
                             if (!isSelf(playerId)) {
-                                player.setAlive(true);
-                                player.setRole(PeerRole.PRIMARY_SERVER);
+                                gameState.setPlayerStatus(playerId, true, PeerRole.PRIMARY_SERVER);
 
-                                logger.serverLog("Promoting [" + playerId + "] as new Primary Server");
-                                gameState.getServerConfig().setPrimary(playerId, peer);
-                                return IReply.PingReply.createPromoteToPrimary(gameState, serverSecrets);
+                                logger.serverLog("Promoting [" + Player.getDisplayName(playerId) + "] as new Primary Server");
+                                gameState.setPrimary(playerId, peer);
+                                publishChange();
+                                return IReply.PingReply.createPromoteToPrimary(refreshSnapshot(), serverSecrets);
                             }
                         }
                     }
                 }
             }
 
-            return IReply.PingReply.createUpdate(gameState);
+            return IReply.PingReply.createUpdate(getSnapshot());
         }
 
         private void checkIfLastPlayer() {
@@ -939,6 +2665,7 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
                 logger.serverLog("Game ending because there is no more player");
                 synchronized (gameStateLock) {
                     gameState.setRunningState(RunningState.GAME_ENDED);
+                    publishChange();
                 }
             }
         }
@@ -955,8 +2682,11 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
 
         public ActiveBackupServer(GameState gameState, ServerSecrets serverSecrets) {
             logger.serverLog("Starting Backup Server");
-            this.gameState = gameState;
+            // the client keeps reading the state it received, so the server works on its own copy
+            this.gameState = gameState.copy();
             this.serverSecrets = serverSecrets;
+            publishChange();
+            startCatchUp();
         }
 
     }
@@ -972,7 +2702,12 @@ public class P2PGame extends UnicastRemoteObject implements IPeer {
         }
 
         @Override
-        public IReply.PingReply callBackupOnPrimaryDied(IPeer peer, String playerId, String authCode, IPeer deadPrimary) {
+        public long callBackupApply(List<Mutation> mutations, ServerSecrets.Delta secretsChanges) {
+            throw new IllegalStateException("Invalid Method Call");
+        }
+
+        @Override
+        public IReply.PingReply callBackupOnPrimaryDied(IPeer peer, int playerId, long authCode, IPeer deadPrimary) {
             throw new IllegalStateException("Invalid Method Call");
         }
     }
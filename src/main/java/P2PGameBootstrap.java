@@ -13,9 +13,18 @@ public class P2PGameBootstrap extends Application {
     /**
      * The game can be started with one of the following commands:
      * java P2PGame --primary=1234,10,10
+     * java P2PGame --primary=1234,10,10,42 (seeded, for reproducible runs)
      * java P2PGame --connect=1234
      * java P2PGame --connect=localhost:1234
      * java P2PGame --connect=173.333.333.333:1234
+     * <p>
+     * Either can be combined with --replication=sync (default), --replication=async[:max-lag]
+     * or --replication=group[:window-millis[:batch-size]] to choose how the primary server
+     * replicates to the backup.
+     * <p>
+     * A normal peer started with --verify=true checks every change the primary server delivers to it.
+     * <p>
+     * --move-window=n lets the player have up to n moves sent to the primary server at once (default 4).
      */
     public static void main(String[] args) {
         launch(args);
@@ -27,6 +36,9 @@ public class P2PGameBootstrap extends Application {
         Map<String, String> params = getParameters().getNamed();
         String primaryParam = params.get("primary");
         String connectParam = params.get("connect");
+        GameParams.ReplicationParams replicationParams =
+                GameParams.ReplicationParams.parse(params.get("replication"));
+        int moveWindow = GameParams.parseMoveWindow(params.get("move-window"));
 
         if (primaryParam != null && connectParam != null) {
             System.out.println("Please specify either one of --primary or --connect");
@@ -45,12 +57,14 @@ public class P2PGameBootstrap extends Application {
             // Start as primary server
             // Process the primary params
 
-            GameParams.PrimaryParams param = GameParams.PrimaryParams.parse(primaryParam);
+            GameParams.PrimaryParams param = GameParams.PrimaryParams.parse(primaryParam, replicationParams, moveWindow);
             GameUI.start(primaryStage, param);
         } else if (connectParam != null) {
             // Start as a normal (non-server) peer
             // Process the normal params
-            GameParams.NonPrimaryParams param = GameParams.NonPrimaryParams.parse(connectParam);
+            boolean verifying = Boolean.parseBoolean(params.get("verify"));
+            GameParams.NonPrimaryParams param = GameParams.NonPrimaryParams.parse(connectParam, replicationParams, verifying,
+                    moveWindow);
             GameUI.start(primaryStage, param);
         } else {
             GameUI.start(primaryStage, null);
@@ -1,82 +1,59 @@
 import java.io.Serializable;
 
 /**
+ * A read-only view over one player's slot in a {@link PlayerTable}. Players are modified
+ * through {@link GameState}, so that every change is versioned.
+ *
  * @author lpthanh
  */
 public class Player implements Serializable {
 
-    private String id;
+    /**
+     * The handle used where no player is referenced, e.g. an unclaimed treasure.
+     */
+    public static final int NO_PLAYER = -1;
 
-    private int posX;
+    private final PlayerTable table;
 
-    private int posY;
-
-    private int treasureCount;
-
-    private boolean alive;
-
-    private PeerRole role;
-
-    public Player(String id,
-                  int posX,
-                  int posY,
-                  int treasureCount,
-                  boolean alive,
-                  PeerRole role) {
+    /**
+     * Compact handle of the player, assigned by the primary server on join.
+     * This is also the player's index in {@link GameState#getPlayerList()}.
+     */
+    private final int id;
 
+    Player(PlayerTable table, int id) {
+        this.table = table;
         this.id = id;
-        this.posX = posX;
-        this.posY = posY;
-        this.treasureCount = treasureCount;
-        this.alive = alive;
-        this.role = role;
     }
 
-    public String getId() {
+    public int getId() {
         return id;
     }
 
-    public void setId(String id) {
-        this.id = id;
-    }
-
     public int getPosX() {
-        return posX;
-    }
-
-    public void setPosX(int posX) {
-        this.posX = posX;
+        return table.getPosX(id);
     }
 
     public int getPosY() {
-        return posY;
-    }
-
-    public void setPosY(int posY) {
-        this.posY = posY;
+        return table.getPosY(id);
     }
 
     public int getTreasureCount() {
-        return treasureCount;
-    }
-
-    public void setTreasureCount(int treasureCount) {
-        this.treasureCount = treasureCount;
+        return table.getTreasureCount(id);
     }
 
     public boolean isAlive() {
-        return alive;
-    }
-
-    public void setAlive(boolean alive) {
-        this.alive = alive;
+        return table.isAlive(id);
     }
 
     public PeerRole getRole() {
-        return role;
+        return table.getRole(id);
     }
 
-    public void setRole(PeerRole role) {
-        this.role = role;
+    /**
+     * @return the name shown to users for the player with the given handle
+     */
+    public static String getDisplayName(int id) {
+        return "Player-" + (id + 1);
     }
-}
\ No newline at end of file
+}
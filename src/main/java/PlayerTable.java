@@ -0,0 +1,166 @@
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Struct-of-arrays storage for the players of a game. Each attribute is kept in its own
+ * primitive array indexed by the player handle, so that scanning one attribute across all
+ * players (e.g. counting the alive ones) walks contiguous memory.
+ * <p>
+ * {@link Player} objects are lightweight views over a slot of this table.
+ *
+ * @author lpthanh
+ */
+public class PlayerTable implements Serializable {
+
+    private static final PeerRole[] ROLES = PeerRole.values();
+
+    private int size;
+
+    private int[] posX = new int[0];
+
+    private int[] posY = new int[0];
+
+    private int[] treasureCounts = new int[0];
+
+    private boolean[] alive = new boolean[0];
+
+    private byte[] roles = new byte[0];
+
+    private transient List<Player> listView;
+
+    /**
+     * Append a new alive player at (0, 0) with the given role.
+     *
+     * @return the handle of the new player
+     */
+    public int add(PeerRole role) {
+        if (size == posX.length) {
+            int capacity = Math.max(4, size * 2);
+            posX = Arrays.copyOf(posX, capacity);
+            posY = Arrays.copyOf(posY, capacity);
+            treasureCounts = Arrays.copyOf(treasureCounts, capacity);
+            alive = Arrays.copyOf(alive, capacity);
+            roles = Arrays.copyOf(roles, capacity);
+        }
+
+        int id = size++;
+        alive[id] = true;
+        roles[id] = (byte) role.ordinal();
+        return id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && id < size;
+    }
+
+    public int getPosX(int id) {
+        return posX[id];
+    }
+
+    public void setPosX(int id, int value) {
+        posX[id] = value;
+    }
+
+    public int getPosY(int id) {
+        return posY[id];
+    }
+
+    public void setPosY(int id, int value) {
+        posY[id] = value;
+    }
+
+    public int getTreasureCount(int id) {
+        return treasureCounts[id];
+    }
+
+    public void setTreasureCount(int id, int value) {
+        treasureCounts[id] = value;
+    }
+
+    public boolean isAlive(int id) {
+        return alive[id];
+    }
+
+    public void setAlive(int id, boolean value) {
+        alive[id] = value;
+    }
+
+    public PeerRole getRole(int id) {
+        return ROLES[roles[id]];
+    }
+
+    public void setRole(int id, PeerRole role) {
+        roles[id] = (byte) role.ordinal();
+    }
+
+    /**
+     * Give the role to one player and demote any other player holding it to a normal player.
+     */
+    public void setExclusiveRole(int id, PeerRole role) {
+        byte roleValue = (byte) role.ordinal();
+        byte normalValue = (byte) PeerRole.NON_SERVER.ordinal();
+        for (int i = 0; i < size; i++) {
+            if (roles[i] == roleValue) {
+                roles[i] = normalValue;
+            }
+        }
+
+        roles[id] = roleValue;
+    }
+
+    public int countAlive() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (alive[i]) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return an independent copy of this table
+     */
+    public PlayerTable copy() {
+        PlayerTable copy = new PlayerTable();
+        copy.size = size;
+        copy.posX = Arrays.copyOf(posX, size);
+        copy.posY = Arrays.copyOf(posY, size);
+        copy.treasureCounts = Arrays.copyOf(treasureCounts, size);
+        copy.alive = Arrays.copyOf(alive, size);
+        copy.roles = Arrays.copyOf(roles, size);
+        return copy;
+    }
+
+    /**
+     * @return a read-only list of views over the players in this table
+     */
+    public List<Player> asList() {
+        if (listView == null) {
+            listView = new AbstractList<Player>() {
+                @Override
+                public Player get(int index) {
+                    if (!PlayerTable.this.contains(index)) {
+                        throw new IndexOutOfBoundsException("Player handle: " + index);
+                    }
+
+                    return new Player(PlayerTable.this, index);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+
+        return listView;
+    }
+}
@@ -7,9 +7,9 @@ public class ServerConfig implements Serializable {
 
     private IPeer backupServer;
 
-    private String primaryPlayerId;
+    private int primaryPlayerId = Player.NO_PLAYER;
 
-    private String backupPlayerId;
+    private int backupPlayerId = Player.NO_PLAYER;
 
     public IPeer getPrimaryServer() {
         return primaryServer;
@@ -27,29 +27,36 @@ public class ServerConfig implements Serializable {
         this.backupServer = backupServer;
     }
 
-    public String getPrimaryPlayerId() {
+    public int getPrimaryPlayerId() {
         return primaryPlayerId;
     }
 
-    private void setPrimaryPlayerId(String primaryPlayerId) {
+    private void setPrimaryPlayerId(int primaryPlayerId) {
         this.primaryPlayerId = primaryPlayerId;
     }
 
-    public String getBackupPlayerId() {
+    public int getBackupPlayerId() {
         return backupPlayerId;
     }
 
-    private void setBackupPlayerId(String backupPlayerId) {
+    private void setBackupPlayerId(int backupPlayerId) {
         this.backupPlayerId = backupPlayerId;
     }
 
-    public void setPrimary(String serverId, IPeer peer) {
+    public void setPrimary(int serverId, IPeer peer) {
         setPrimaryPlayerId(serverId);
         setPrimaryServer(peer);
     }
 
-    public void setBackup(String serverId, IPeer peer) {
+    public void setBackup(int serverId, IPeer peer) {
         setBackupPlayerId(serverId);
         setBackupServer(peer);
     }
+
+    public ServerConfig copy() {
+        ServerConfig copy = new ServerConfig();
+        copy.setPrimary(primaryPlayerId, primaryServer);
+        copy.setBackup(backupPlayerId, backupServer);
+        return copy;
+    }
 }
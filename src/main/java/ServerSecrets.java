@@ -1,48 +1,183 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * This class contains the extra security information that is passed between primary and backup server,
  * as well as passed to a peer who is becoming a new server.
  * <p>
  * Objects of this class should not be passed to non-server peers.
+ * <p>
+ * Auth codes and peers are indexed by the player handle assigned on join. The arrays are replaced
+ * when they grow, so every access holds the lock.
  *
  * @author lpthanh
  */
 public class ServerSecrets implements Serializable {
 
-    private final Map<String, String> authCodes = new HashMap<>();
+    private long[] authCodes = new long[0];
+
+    private IPeer[] peers = new IPeer[0];
+
+    /**
+     * The version at which each handle was last changed, so that the changes can be sent incrementally.
+     */
+    private long[] changedVersions = new long[0];
+
+    private long version;
+
+    /**
+     * Save the auth code and remote object of a newly joined player.
+     */
+    public synchronized void register(int playerId, long authCode, IPeer peer) {
+        put(playerId, authCode, peer, ++version);
+    }
 
-    private final Map<String, IPeer> peers = new HashMap<>();
+    private void put(int playerId, long authCode, IPeer peer, long changedVersion) {
+        if (playerId >= peers.length) {
+            int capacity = Math.max(playerId + 1, peers.length * 2);
+            authCodes = Arrays.copyOf(authCodes, capacity);
+            peers = Arrays.copyOf(peers, capacity);
+            changedVersions = Arrays.copyOf(changedVersions, capacity);
+        }
 
-    public Map<String, String> getAuthCodes() {
-        return authCodes;
+        authCodes[playerId] = authCode;
+        peers[playerId] = peer;
+        changedVersions[playerId] = changedVersion;
     }
 
-    public Map<String, IPeer> getPeers() {
-        return peers;
+    /**
+     * Forget the auth code and remote object of a player that has left the game, so that its
+     * remote stub is no longer serialized or kept referenced.
+     */
+    public synchronized void release(int playerId) {
+        if (getPeer(playerId) == null) {
+            return;
+        }
+
+        put(playerId, 0, null, ++version);
+    }
+
+    /**
+     * @return the version of the secrets, incremented on every change
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the changes made after the given version, or null if there are none
+     */
+    public synchronized Delta getChangesSince(long sinceVersion) {
+        if (sinceVersion >= version) {
+            return null;
+        }
+
+        int count = 0;
+        for (int i = 0; i < peers.length; i++) {
+            if (changedVersions[i] > sinceVersion) {
+                count++;
+            }
+        }
+
+        int[] playerIds = new int[count];
+        long[] changedAuthCodes = new long[count];
+        IPeer[] changedPeers = new IPeer[count];
+        int index = 0;
+        for (int i = 0; i < peers.length; i++) {
+            if (changedVersions[i] > sinceVersion) {
+                playerIds[index] = i;
+                changedAuthCodes[index] = authCodes[i];
+                changedPeers[index] = peers[i];
+                index++;
+            }
+        }
+
+        return new Delta(sinceVersion, version, playerIds, changedAuthCodes, changedPeers);
+    }
+
+    /**
+     * Apply the changes received from the primary server.
+     *
+     * @return false if some earlier changes are missing, in which case the full secrets are needed
+     */
+    public synchronized boolean apply(Delta delta) {
+        if (delta.fromVersion > version) {
+            return false;
+        }
+
+        for (int i = 0; i < delta.playerIds.length; i++) {
+            put(delta.playerIds[i], delta.authCodes[i], delta.peers[i], delta.toVersion);
+        }
+
+        version = Math.max(version, delta.toVersion);
+        return true;
+    }
+
+    /**
+     * @return the remote object of the player, or null if the player is unknown
+     */
+    public synchronized IPeer getPeer(int playerId) {
+        if (playerId < 0 || playerId >= peers.length) {
+            return null;
+        }
+
+        return peers[playerId];
     }
 
     /**
      * Authenticate the player ID and auth code with the peer session.
      */
-    public boolean auth(IPeer peer, String playerId, String authCode) {
+    public synchronized boolean auth(IPeer peer, int playerId, long authCode) {
         // verify auth codes
-        String correctAuthCode = getAuthCodes().get(playerId);
-        if (correctAuthCode == null || !correctAuthCode.equals(authCode)) {
-            // incorrect code
+        IPeer savedPeer = getPeer(playerId);
+        if (savedPeer == null || authCodes[playerId] != authCode) {
+            // unknown player or incorrect code
             return false;
         }
 
         // verify remote object
-        IPeer savedPeer = getPeers().get(playerId);
-        if (savedPeer == null || peer == null || savedPeer.hashCode() != peer.hashCode()) {
+        if (peer == null || savedPeer.hashCode() != peer.hashCode()) {
             return false;
         }
 
         return true;
     }
 
+    /**
+     * Serialize under the lock, as the secrets are sent to new servers while players keep joining.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /**
+     * The handles changed between two versions of the secrets.
+     */
+    public static class Delta implements Serializable {
+
+        private final long fromVersion;
+
+        private final long toVersion;
+
+        private final int[] playerIds;
+
+        private final long[] authCodes;
+
+        private final IPeer[] peers;
+
+        private Delta(long fromVersion, long toVersion, int[] playerIds, long[] authCodes, IPeer[] peers) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.playerIds = playerIds;
+            this.authCodes = authCodes;
+            this.peers = peers;
+        }
+
+        public long getToVersion() {
+            return toVersion;
+        }
+    }
 
 }
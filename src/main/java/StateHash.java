@@ -0,0 +1,60 @@
+/**
+ * Zobrist-style hashing of a {@link GameState}. The hash of a state is the XOR of one
+ * pseudo-random key per (attribute, slot, value) triple of its content, so a change is
+ * hashed in constant time by XOR-ing out the key of the old value and XOR-ing in the key
+ * of the new one. The keys are derived with SplitMix64, so no key table is needed.
+ *
+ * @author lpthanh
+ */
+public final class StateHash {
+
+    public static final int POSITION = 1;
+
+    public static final int TREASURE_COUNT = 2;
+
+    public static final int STATUS = 3;
+
+    public static final int TREASURE_CELL = 4;
+
+    public static final int TREASURE_OWNER = 5;
+
+    public static final int RUNNING_STATE = 6;
+
+    public static final int PRIMARY = 7;
+
+    public static final int BACKUP = 8;
+
+    public static final int COMPACTED_TREASURES = 9;
+
+    private StateHash() {
+
+    }
+
+    /**
+     * @return the key of one attribute of a slot (player handle or treasure index) having the value
+     */
+    public static long key(int attribute, int slot, int value) {
+        return mix(mix(((long) attribute << 32) | (slot & 0xffffffffL)) ^ value);
+    }
+
+    /**
+     * @return what to XOR into the hash when the attribute of a slot changes value
+     */
+    public static long change(int attribute, int slot, int oldValue, int newValue) {
+        return key(attribute, slot, oldValue) ^ key(attribute, slot, newValue);
+    }
+
+    /**
+     * @return the liveness and role of a player as a single hashed value
+     */
+    public static int status(boolean alive, PeerRole role) {
+        return (role.ordinal() << 1) | (alive ? 1 : 0);
+    }
+
+    private static long mix(long z) {
+        z += 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,136 @@
+import java.io.Serializable;
+
+/**
+ * The content of some leaves of a {@link GameState}'s Merkle tree, sent by the primary server to
+ * repair a backup whose copy has diverged. Only the players and treasures of the differing leaves
+ * are included, along with the version and hash the repaired state must end up with.
+ *
+ * @author lpthanh
+ */
+public class StateRepair implements Serializable {
+
+    private final long version;
+
+    private final long stateHash;
+
+    private final int playerCount;
+
+    private final int treasureCount;
+
+    private final int[] playerIds;
+
+    private final int[] posX;
+
+    private final int[] posY;
+
+    private final int[] treasureCounts;
+
+    private final boolean[] alive;
+
+    private final PeerRole[] roles;
+
+    private final int[] treasureIndexes;
+
+    private final int[] treasureOwners;
+
+    /**
+     * The running state and server config, or null if their leaf does not need repairing.
+     */
+    private final RunningState runningState;
+
+    private final ServerConfig serverConfig;
+
+    StateRepair(long version,
+                long stateHash,
+                int playerCount,
+                int treasureCount,
+                int[] playerIds,
+                int[] posX,
+                int[] posY,
+                int[] treasureCounts,
+                boolean[] alive,
+                PeerRole[] roles,
+                int[] treasureIndexes,
+                int[] treasureOwners,
+                RunningState runningState,
+                ServerConfig serverConfig) {
+
+        this.version = version;
+        this.stateHash = stateHash;
+        this.playerCount = playerCount;
+        this.treasureCount = treasureCount;
+        this.playerIds = playerIds;
+        this.posX = posX;
+        this.posY = posY;
+        this.treasureCounts = treasureCounts;
+        this.alive = alive;
+        this.roles = roles;
+        this.treasureIndexes = treasureIndexes;
+        this.treasureOwners = treasureOwners;
+        this.runningState = runningState;
+        this.serverConfig = serverConfig;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getStateHash() {
+        return stateHash;
+    }
+
+    public int getPlayerCount() {
+        return playerCount;
+    }
+
+    public int getTreasureCount() {
+        return treasureCount;
+    }
+
+    /**
+     * @return the number of repaired players and treasures
+     */
+    public int size() {
+        return playerIds.length + treasureIndexes.length;
+    }
+
+    int[] getPlayerIds() {
+        return playerIds;
+    }
+
+    int[] getPosX() {
+        return posX;
+    }
+
+    int[] getPosY() {
+        return posY;
+    }
+
+    int[] getTreasureCounts() {
+        return treasureCounts;
+    }
+
+    boolean[] getAlive() {
+        return alive;
+    }
+
+    PeerRole[] getRoles() {
+        return roles;
+    }
+
+    int[] getTreasureIndexes() {
+        return treasureIndexes;
+    }
+
+    int[] getTreasureOwners() {
+        return treasureOwners;
+    }
+
+    RunningState getRunningState() {
+        return runningState;
+    }
+
+    ServerConfig getServerConfig() {
+        return serverConfig;
+    }
+}
@@ -9,9 +9,9 @@ public class Treasure implements Serializable {
 
     private int posY;
 
-    private String assignedPlayerId;
+    private int assignedPlayerId;
 
-    public Treasure(String treasureId, int posX, int posY, String assignedPlayerId) {
+    public Treasure(String treasureId, int posX, int posY, int assignedPlayerId) {
         this.treasureId = treasureId;
         this.posX = posX;
         this.posY = posY;
@@ -42,13 +42,17 @@ public class Treasure implements Serializable {
         this.posY = posY;
     }
 
-    public String getAssignedPlayerId() {
+    public int getAssignedPlayerId() {
         return assignedPlayerId;
     }
 
-    public void setAssignedPlayerId(String assignedPlayerId) {
+    public void setAssignedPlayerId(int assignedPlayerId) {
         this.assignedPlayerId = assignedPlayerId;
     }
 
+    public boolean isClaimed() {
+        return assignedPlayerId != Player.NO_PLAYER;
+    }
+
 
 }
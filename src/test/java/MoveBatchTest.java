@@ -0,0 +1,221 @@
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests applying ordered batches of moves with {@link GameState#processMoves(List)}.
+ *
+ * @author lpthanh
+ */
+public class MoveBatchTest extends TestCase {
+
+    public void testBatchEqualsMovesOneByOne() {
+        GameState batched = MutationLogTest.createGame(1);
+        GameState single = batched.copy();
+        long startVersion = batched.getVersion();
+
+        Random random = new Random(1);
+        Move.Direction[] directions = {Move.Direction.N, Move.Direction.S, Move.Direction.E, Move.Direction.W};
+        List<Move> moves = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            moves.add(new Move(directions[random.nextInt(directions.length)], random.nextInt(30)));
+        }
+
+        MoveBatchResult result = batched.processMoves(moves);
+        assertEquals(moves.size(), result.size());
+
+        // the legal moves are logged in batch order
+        List<Mutation> mutations = batched.getMutationsSince(startVersion);
+        int logged = 0;
+        for (int i = 0; i < moves.size(); i++) {
+            assertEquals("Move " + i, result.isIllegal(i), single.processMove(moves.get(i), null));
+            if (!result.isIllegal(i)) {
+                Mutation mutation = mutations.get(logged++);
+                assertEquals(moves.get(i).getPlayerId(), mutation.getPlayerId());
+                assertEquals(moves.get(i).getDirection(), mutation.getDirection());
+            }
+        }
+
+        assertEquals(mutations.size(), logged);
+        assertEquals(single.getVersion(), batched.getVersion());
+        assertEquals(single.getStateHash(), batched.getStateHash());
+    }
+
+    public void testEarlierMoveWinsContestedCell() {
+        GameState state = createCrowdedGame();
+        int freeCell = findFreeCell(state);
+
+        List<Move> contenders = new ArrayList<>();
+        for (Player player : state.getPlayerList()) {
+            Move.Direction direction = directionTo(cellOf(player), freeCell);
+            if (direction != null) {
+                contenders.add(new Move(direction, player.getId()));
+            }
+        }
+
+        assertEquals(2, contenders.size());
+        Move first = contenders.get(0);
+        Move second = contenders.get(1);
+
+        MoveBatchResult result = state.copy().processMoves(Arrays.asList(first, second));
+        assertEquals(MoveBatchResult.MOVED, result.getOutcome(0));
+        assertTrue(result.isIllegal(1));
+
+        result = state.copy().processMoves(Arrays.asList(second, first));
+        assertEquals(MoveBatchResult.MOVED, result.getOutcome(0));
+        assertTrue(result.isIllegal(1));
+    }
+
+    public void testIllegalMovesMidBatch() {
+        GameState state = createCrowdedGame();
+        int freeCell = findFreeCell(state);
+        long startVersion = state.getVersion();
+
+        // one player is diagonal to the free cell and boxed in by the two others
+        Player mover = null;
+        Player boxed = null;
+        for (Player player : state.getPlayerList()) {
+            if (directionTo(cellOf(player), freeCell) == null) {
+                boxed = player;
+            } else {
+                mover = player;
+            }
+        }
+
+        int moverCell = cellOf(mover);
+        Move crash = new Move(directionTo(cellOf(boxed), moverCell), boxed.getId());
+        Move offBoard = new Move(mover.getPosX() == 0 ? Move.Direction.W : Move.Direction.E, mover.getId());
+        Move moveAway = new Move(directionTo(moverCell, freeCell), mover.getId());
+
+        // the same step of the boxed player crashes, then succeeds once the cell has been left
+        MoveBatchResult result = state.processMoves(Arrays.asList(crash, offBoard, moveAway, crash));
+        assertTrue("Crashing", result.isIllegal(0));
+        assertTrue("Leaving the board", result.isIllegal(1));
+        assertEquals(MoveBatchResult.MOVED, result.getOutcome(2));
+        assertEquals(MoveBatchResult.MOVED, result.getOutcome(3));
+        assertEquals(moverCell, cellOf(state.searchById(boxed.getId())));
+        assertEquals(freeCell, cellOf(state.searchById(mover.getId())));
+
+        // only the legal moves are logged
+        List<Mutation> mutations = state.getMutationsSince(startVersion);
+        assertEquals(2, mutations.size());
+        assertEquals(mover.getId(), mutations.get(0).getPlayerId());
+        assertEquals(boxed.getId(), mutations.get(1).getPlayerId());
+    }
+
+    public void testMovesOfDeadAndUnknownPlayersAreIgnored() {
+        GameState state = MutationLogTest.createGame(3);
+        state.setPlayerStatus(5, false, PeerRole.DEAD);
+        Player dead = state.searchById(5);
+        int deadX = dead.getPosX();
+        int deadY = dead.getPosY();
+        long startVersion = state.getVersion();
+
+        Move alive = findLegalMove(state, 6);
+        MoveBatchResult result = state.processMoves(Arrays.asList(
+                findLegalMove(state, 5),
+                new Move(Move.Direction.N, 99),
+                alive));
+
+        assertEquals(MoveBatchResult.IGNORED, result.getOutcome(0));
+        assertEquals(MoveBatchResult.IGNORED, result.getOutcome(1));
+        assertTrue(result.getOutcome(2) == MoveBatchResult.MOVED || result.hasClaimedTreasure(2));
+        assertEquals(deadX, state.searchById(5).getPosX());
+        assertEquals(deadY, state.searchById(5).getPosY());
+
+        // only the live player's move is logged
+        List<Mutation> mutations = state.getMutationsSince(startVersion);
+        assertEquals(1, mutations.size());
+        assertEquals(6, mutations.get(0).getPlayerId());
+    }
+
+    public void testPredictionKeepsVersion() {
+        GameState state = MutationLogTest.createGame(2);
+        long version = state.getVersion();
+        Player player = state.searchById(1);
+        int x = player.getPosX();
+        int y = player.getPosY();
+        Move move = findLegalMove(state, 1);
+
+        GameState prediction = state.predict(Arrays.asList(move));
+        assertTrue(prediction.isSnapshot());
+        assertEquals(version, prediction.getVersion());
+        assertEquals(1, prediction.getPredictedMoveCount());
+        assertTrue(prediction.searchById(1).getPosX() != x || prediction.searchById(1).getPosY() != y);
+
+        // the prediction leaves the state alone, and the state's next change takes the next version
+        assertEquals(x, state.searchById(1).getPosX());
+        assertEquals(y, state.searchById(1).getPosY());
+        assertEquals(0, state.getPredictedMoveCount());
+        assertFalse(state.processMove(move, null));
+        assertEquals(version + 1, state.getVersion());
+        assertEquals(prediction.getStateHash(), state.getStateHash());
+    }
+
+    /**
+     * @return three players on a 2x2 board, which leaves one free cell next to two of them
+     */
+    private static GameState createCrowdedGame() {
+        GameState state = new GameState(2);
+        for (int i = 0; i < 3; i++) {
+            state.addPlayer(PeerRole.NON_SERVER);
+        }
+
+        state.initRandom(0, new Random(1));
+        state.setRunningState(RunningState.GAME_STARTED);
+        return state;
+    }
+
+    private static int findFreeCell(GameState state) {
+        int freeCell = 0 + 1 + 2 + 3;
+        for (Player player : state.getPlayerList()) {
+            freeCell -= cellOf(player);
+        }
+
+        return freeCell;
+    }
+
+    /**
+     * @return the cell index of a player on the 2x2 board
+     */
+    private static int cellOf(Player player) {
+        return player.getPosY() * 2 + player.getPosX();
+    }
+
+    /**
+     * @return the direction from one cell of the 2x2 board to an adjacent one, or null if they are not adjacent
+     */
+    private static Move.Direction directionTo(int fromCell, int toCell) {
+        int fromX = fromCell % 2;
+        int fromY = fromCell / 2;
+        int toX = toCell % 2;
+        int toY = toCell / 2;
+        if (fromY == toY) {
+            return toX == fromX + 1 ? Move.Direction.E : toX == fromX - 1 ? Move.Direction.W : null;
+        }
+
+        if (fromX == toX) {
+            return toY == fromY + 1 ? Move.Direction.S : toY == fromY - 1 ? Move.Direction.N : null;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a move of the player that is legal on the given state, ignoring whether it is alive
+     */
+    private static Move findLegalMove(GameState state, int playerId) {
+        for (Move.Direction direction : new Move.Direction[]{Move.Direction.N, Move.Direction.S, Move.Direction.E, Move.Direction.W}) {
+            GameState trial = state.copy();
+            trial.setPlayerStatus(playerId, true, PeerRole.NON_SERVER);
+            if (!trial.processMove(new Move(direction, playerId), null)) {
+                return new Move(direction, playerId);
+            }
+        }
+
+        throw new AssertionError("Player " + playerId + " cannot move");
+    }
+}
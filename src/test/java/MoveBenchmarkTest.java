@@ -0,0 +1,81 @@
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the cost of one move as the number of players on the same board grows from 2 to 10,000,
+ * both for {@link GameState#processMove(Move, Player)} alone and along the primary server's move path.
+ * The cost must stay flat: a move only touches its own player, cells and treasures.
+ * <p>
+ * Timings depend on the machine, so this only runs with the benchmark profile
+ * ({@code mvn test -Pbenchmark}); {@link MovePathTest} checks the same path by counting instead.
+ *
+ * @author lpthanh
+ */
+public class MoveBenchmarkTest extends TestCase {
+
+    private static final int[] PLAYER_COUNTS = MovePathTest.PLAYER_COUNTS;
+
+    private static final int WARM_UP_MOVES = 20000;
+
+    private static final int MEASURED_MOVES = 50000;
+
+    /**
+     * How much slower a move may get from the fewest to the most players, with some slack for
+     * timing noise. A move that copies the state is several times slower at 10,000 players.
+     */
+    private static final double MAX_SLOWDOWN = 3;
+
+    public void testProcessMoveCostIsFlat() {
+        double[] nanosPerMove = new double[PLAYER_COUNTS.length];
+
+        // the first pass only warms up the JIT, so that the smallest game is not measured cold
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < PLAYER_COUNTS.length; i++) {
+                GameState state = MovePathTest.createGame(PLAYER_COUNTS[i]);
+                Random random = new Random(i);
+
+                runProcessMoves(state, random, WARM_UP_MOVES);
+                long start = System.nanoTime();
+                runProcessMoves(state, random, MEASURED_MOVES);
+                nanosPerMove[i] = (double) (System.nanoTime() - start) / MEASURED_MOVES;
+            }
+        }
+
+        assertFlat("processMove", nanosPerMove);
+    }
+
+    public void testServerMovePathCostIsFlat() throws IOException {
+        double[] nanosPerMove = new double[PLAYER_COUNTS.length];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < PLAYER_COUNTS.length; i++) {
+                MovePathTest.ServerPath server = new MovePathTest.ServerPath(MovePathTest.createGame(PLAYER_COUNTS[i]));
+                Random random = new Random(i);
+
+                server.run(random, WARM_UP_MOVES);
+                long start = System.nanoTime();
+                server.run(random, MEASURED_MOVES);
+                nanosPerMove[i] = (double) (System.nanoTime() - start) / MEASURED_MOVES;
+            }
+        }
+
+        assertFlat("Server move path", nanosPerMove);
+    }
+
+    private static void runProcessMoves(GameState state, Random random, int count) {
+        int playerCount = state.getPlayerList().size();
+        for (int i = 0; i < count; i++) {
+            state.processMove(MovePathTest.randomMove(random, playerCount), null);
+        }
+    }
+
+    private static void assertFlat(String path, double[] nanosPerMove) {
+        StringBuilder costs = new StringBuilder(path).append(" ns/move by players:");
+        for (int i = 0; i < PLAYER_COUNTS.length; i++) {
+            costs.append(String.format(" %d=%.0f", PLAYER_COUNTS[i], nanosPerMove[i]));
+        }
+
+        assertTrue(costs.toString(), nanosPerMove[nanosPerMove.length - 1] <= MAX_SLOWDOWN * nanosPerMove[0]);
+    }
+}
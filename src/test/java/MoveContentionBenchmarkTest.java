@@ -0,0 +1,44 @@
+import junit.framework.TestCase;
+
+/**
+ * Compares the throughput of moves made from many threads at once with that of the same moves
+ * made under a single lock, which is what the moves would get if they serialized on any shared
+ * lock. Timings depend on the machine, so this only runs with the benchmark profile
+ * ({@code mvn test -Pbenchmark}).
+ *
+ * @author lpthanh
+ */
+public class MoveContentionBenchmarkTest extends TestCase {
+
+    private static final int MOVES_PER_THREAD = 100000;
+
+    public void testRegionLocksAgainstSingleLock() throws InterruptedException {
+        Object singleLock = new Object();
+
+        // the first pass only warms up the JIT
+        double regionLocksRate = 0;
+        double singleLockRate = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            regionLocksRate = MoveContentionTest.runConcurrently(MoveContentionTest.createGame(1), MOVES_PER_THREAD, 1, null);
+            singleLockRate = MoveContentionTest.runConcurrently(MoveContentionTest.createGame(1), MOVES_PER_THREAD, 1, singleLock);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        double ratio = regionLocksRate / singleLockRate;
+        assertTrue(String.format("%d threads on %d cores: region locks %.0f moves/ms, single lock %.0f moves/ms (x%.2f)",
+                MoveContentionTest.THREAD_COUNT, cores, regionLocksRate, singleLockRate, ratio), ratio >= minSpeedup(cores));
+    }
+
+    /**
+     * With several cores, moves in different regions must run in parallel and beat the single
+     * lock. With one core nothing runs in parallel, so the locking must only not cost more than
+     * half of the throughput.
+     */
+    private static double minSpeedup(int cores) {
+        if (cores >= 4) {
+            return 1.5;
+        }
+
+        return cores >= 2 ? 1 : 0.5;
+    }
+}
@@ -0,0 +1,144 @@
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs moves from many threads at once, as the primary server does with concurrent move requests,
+ * and checks that concurrent moves never put two players on one cell or claim a treasure twice,
+ * and that they are logged in an order that replays to the same state.
+ * {@link MoveContentionBenchmarkTest} measures their throughput.
+ *
+ * @author lpthanh
+ */
+public class MoveContentionTest extends TestCase {
+
+    private static final int BOARD_SIZE = 100;
+
+    private static final int PLAYER_COUNT = 2000;
+
+    private static final int TREASURE_COUNT = 1500;
+
+    static final int THREAD_COUNT = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Small enough for all the changes of a round to stay in the mutation log, for replaying them.
+     */
+    private static final int CHECKED_MOVES = 4000;
+
+    private static final int CHECKED_ROUNDS = 10;
+
+    public void testConcurrentMovesNeverClaimTwice() throws InterruptedException {
+        for (int round = 0; round < CHECKED_ROUNDS; round++) {
+            GameState state = createGame(round);
+            GameState replica = state.copy();
+
+            runConcurrently(state, CHECKED_MOVES / THREAD_COUNT, round, null);
+
+            assertOneCellPerPlayer(state);
+            assertTreasuresClaimedOnce(state);
+
+            // the hash kept up by the moves equals one computed from the content
+            assertEquals("Hash of round " + round, state.copy().getMerkleNodes(new int[]{1})[0], state.getStateHash());
+
+            // replaying the changes in their logged order leads to the same state
+            List<Mutation> mutations = state.getMutationsSince(replica.getVersion());
+            assertNotNull("Changes of round " + round + " are no longer logged", mutations);
+            for (Mutation mutation : mutations) {
+                assertTrue("Replaying version " + mutation.getVersion(), replica.apply(mutation));
+            }
+
+            assertEquals(state.getVersion(), replica.getVersion());
+            assertEquals(state.getStateHash(), replica.getStateHash());
+            assertTreasuresClaimedOnce(replica);
+        }
+    }
+
+    static GameState createGame(long seed) {
+        GameState state = new GameState(BOARD_SIZE);
+        for (int i = 0; i < PLAYER_COUNT; i++) {
+            state.addPlayer(PeerRole.NON_SERVER);
+        }
+
+        state.initRandom(TREASURE_COUNT, new Random(seed));
+        state.setRunningState(RunningState.GAME_STARTED);
+        return state;
+    }
+
+    /**
+     * Make random moves from {@link #THREAD_COUNT} threads, all started together. Any thread may
+     * move any player, so some moves of the same player race too.
+     *
+     * @param singleLock a lock to hold around every move, or null to rely on the state's own locking
+     * @return the number of moves per millisecond
+     */
+    static double runConcurrently(GameState state, int movesPerThread, long seed, Object singleLock)
+            throws InterruptedException {
+
+        Move.Direction[] directions = {Move.Direction.N, Move.Direction.S, Move.Direction.E, Move.Direction.W};
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            Random random = new Random(seed * THREAD_COUNT + t);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int i = 0; i < movesPerThread; i++) {
+                    Move move = new Move(directions[random.nextInt(directions.length)], random.nextInt(PLAYER_COUNT));
+                    if (singleLock == null) {
+                        state.processMove(move, null);
+                    } else {
+                        synchronized (singleLock) {
+                            state.processMove(move, null);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double millis = (System.nanoTime() - startNanos) / 1e6;
+        return THREAD_COUNT * movesPerThread / millis;
+    }
+
+    private static void assertOneCellPerPlayer(GameState state) {
+        Set<Integer> cells = new HashSet<>();
+        for (Player player : state.getPlayerList()) {
+            int cell = player.getPosY() * BOARD_SIZE + player.getPosX();
+            assertTrue("Two players on cell " + cell, cells.add(cell));
+        }
+    }
+
+    private static void assertTreasuresClaimedOnce(GameState state) {
+        int[] claimedByPlayer = new int[state.getPlayerList().size()];
+        int claimed = 0;
+        for (Treasure treasure : state.getTreasureList()) {
+            if (treasure.isClaimed()) {
+                claimedByPlayer[treasure.getAssignedPlayerId()]++;
+                claimed++;
+            }
+        }
+
+        // a treasure claimed twice would be counted for both players, but assigned to only one
+        for (Player player : state.getPlayerList()) {
+            assertEquals("Treasures of player " + player.getId(), claimedByPlayer[player.getId()], player.getTreasureCount());
+        }
+
+        assertEquals(TREASURE_COUNT, claimed + state.getRemainingTreasureCount());
+    }
+}
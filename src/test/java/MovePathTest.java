@@ -0,0 +1,185 @@
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the work of one move along the primary server's move path does not grow with the
+ * number of players: every move sends the backup server only its own change, and every reply is
+ * a delta of that change rather than the game state. Unlike {@link MoveBenchmarkTest}, this
+ * counts what is sent instead of timing it.
+ *
+ * @author lpthanh
+ */
+public class MovePathTest extends TestCase {
+
+    static final int BOARD_SIZE = 200;
+
+    static final int TREASURE_COUNT = 1000;
+
+    static final int[] PLAYER_COUNTS = {2, 100, 1000, 10000};
+
+    private static final int MOVES = 5000;
+
+    /**
+     * A serialized delta of one move is a few hundred bytes; the game state of the smallest game
+     * is already larger, so a reply carrying the state fails at any number of players.
+     */
+    private static final int MAX_REPLY_BYTES = 2048;
+
+    public void testMoveSendsOnlyItsOwnChange() throws IOException {
+        for (int playerCount : PLAYER_COUNTS) {
+            ServerPath server = new ServerPath(createGame(playerCount));
+            server.run(new Random(playerCount), MOVES);
+
+            String game = playerCount + " players: ";
+            assertEquals(game + "replies carrying the game state", 0, server.stateReplies);
+            assertTrue(game + server.maxReplyChanges + " changes in a reply", server.maxReplyChanges <= 1);
+            assertTrue(game + server.maxReplicatedChanges + " changes sent to the backup for a move",
+                    server.maxReplicatedChanges <= 1);
+            assertTrue(game + "a reply of " + server.maxReplyBytes + " bytes", server.maxReplyBytes <= MAX_REPLY_BYTES);
+            assertEquals(game + "backup diverged", server.state.getStateHash(), server.backup.getStateHash());
+        }
+    }
+
+    public void testStateReplyExceedsBound() throws IOException {
+        // keeps MAX_REPLY_BYTES meaningful: a reply carrying even the smallest game does not fit
+        ServerPath server = new ServerPath(createGame(PLAYER_COUNTS[0]));
+        server.writeReply(IReply.MoveReply.createReply(server.state.snapshot(), false));
+        assertTrue(server.replyBytes.size() + " bytes", server.replyBytes.size() > MAX_REPLY_BYTES);
+    }
+
+    static GameState createGame(int playerCount) {
+        GameState state = new GameState(BOARD_SIZE);
+        for (int i = 0; i < playerCount; i++) {
+            state.addPlayer(i == 0 ? PeerRole.PRIMARY_SERVER : i == 1 ? PeerRole.BACKUP_SERVER : PeerRole.NON_SERVER);
+        }
+
+        state.initRandom(TREASURE_COUNT, new Random(playerCount));
+        state.setRunningState(RunningState.GAME_STARTED);
+        return state;
+    }
+
+    static Move randomMove(Random random, int playerCount) {
+        Move.Direction[] directions = {Move.Direction.N, Move.Direction.S, Move.Direction.E, Move.Direction.W};
+        return new Move(directions[random.nextInt(directions.length)], random.nextInt(playerCount));
+    }
+
+    /**
+     * The steps P2PGame's primary server takes for every move once the game has started:
+     * authenticate the player, apply the move, check for the end of the game, send the new
+     * changes to the backup server and reply with the changes the player has not seen yet,
+     * serialized as RMI would. The RMI calls themselves are left out.
+     */
+    static class ServerPath {
+
+        final GameState state;
+
+        final GameState backup;
+
+        final ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
+
+        int stateReplies;
+
+        int maxReplyChanges;
+
+        int maxReplicatedChanges;
+
+        int maxReplyBytes;
+
+        private final ServerSecrets serverSecrets = new ServerSecrets();
+
+        private final IPeer[] peers;
+
+        private long backupVersion;
+
+        ServerPath(GameState state) {
+            this.state = state;
+            this.peers = new IPeer[state.getPlayerList().size()];
+            for (int id = 0; id < peers.length; id++) {
+                peers[id] = createPeer();
+                serverSecrets.register(id, id, peers[id]);
+            }
+
+            this.backup = state.copy();
+            this.backupVersion = backup.getVersion();
+        }
+
+        void run(Random random, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                Move move = randomMove(random, peers.length);
+                int playerId = move.getPlayerId();
+
+                // the player is kept up to date by the pushes, so it knows the version before its move
+                long knownVersion = state.getVersion();
+
+                Player player = state.searchById(playerId);
+                assertTrue(serverSecrets.auth(peers[playerId], playerId, playerId));
+                boolean illegalMove = state.processMove(move, player);
+                if (state.getRemainingTreasureCount() == 0) {
+                    state.setRunningState(RunningState.GAME_ENDED);
+                }
+
+                replicate();
+                writeReply(createMoveReply(knownVersion, illegalMove));
+            }
+        }
+
+        private void replicate() {
+            List<Mutation> mutations = state.getMutationsSince(backupVersion);
+            for (Mutation mutation : mutations) {
+                assertTrue(backup.apply(mutation));
+            }
+
+            maxReplicatedChanges = Math.max(maxReplicatedChanges, mutations.size());
+            backupVersion = backup.getVersion();
+        }
+
+        /**
+         * As the server builds it: from the live log, starting at the change that made knownVersion,
+         * or from a snapshot if that change is no longer logged.
+         */
+        private IReply.MoveReply createMoveReply(long knownVersion, boolean illegalMove) {
+            List<Mutation> changes = state.getMutationsSince(knownVersion - 1);
+            if (changes == null || changes.isEmpty()) {
+                stateReplies++;
+                return IReply.MoveReply.createReply(state.snapshot(), illegalMove);
+            }
+
+            Mutation last = changes.get(changes.size() - 1);
+            changes.remove(0);
+            maxReplyChanges = Math.max(maxReplyChanges, changes.size());
+            return IReply.MoveReply.createDelta(changes, last.getVersion(), last.getStateHash(), illegalMove);
+        }
+
+        void writeReply(IReply.MoveReply reply) throws IOException {
+            replyBytes.reset();
+            try (ObjectOutputStream out = new ObjectOutputStream(replyBytes)) {
+                out.writeObject(reply);
+            }
+
+            maxReplyBytes = Math.max(maxReplyBytes, replyBytes.size());
+        }
+    }
+
+    /**
+     * @return a peer that only stands for a player's identity, as no call is made to it
+     */
+    private static IPeer createPeer() {
+        return (IPeer) Proxy.newProxyInstance(IPeer.class.getClassLoader(), new Class<?>[]{IPeer.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
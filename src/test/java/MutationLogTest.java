@@ -0,0 +1,154 @@
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the mutation log, and that replaying the logged changes on a copy of a game state
+ * leads to an equal state.
+ *
+ * @author lpthanh
+ */
+public class MutationLogTest extends TestCase {
+
+    public void testSinceReturnsChangesInOrder() {
+        MutationLog log = new MutationLog(10, 8);
+        for (long version = 11; version <= 15; version++) {
+            log.append(createMutation(version));
+        }
+
+        List<Mutation> mutations = log.since(12);
+        assertEquals(3, mutations.size());
+        for (int i = 0; i < mutations.size(); i++) {
+            assertEquals(13 + i, mutations.get(i).getVersion());
+        }
+
+        assertEquals(0, log.since(15).size());
+        assertEquals(5, log.since(10).size());
+    }
+
+    public void testSinceOutsideTheLogIsNull() {
+        MutationLog log = new MutationLog(10, 8);
+        log.append(createMutation(11));
+
+        assertNull("Before the log", log.since(9));
+        assertNull("After the log", log.since(12));
+    }
+
+    public void testOldestChangesAreDroppedWhenFull() {
+        MutationLog log = new MutationLog(0, 8);
+        for (long version = 1; version <= 20; version++) {
+            log.append(createMutation(version));
+        }
+
+        assertNull(log.since(11));
+        List<Mutation> mutations = log.since(12);
+        assertEquals(8, mutations.size());
+        assertEquals(13, mutations.get(0).getVersion());
+        assertEquals(20, mutations.get(7).getVersion());
+    }
+
+    public void testResetDropsAllChanges() {
+        MutationLog log = new MutationLog(0, 8);
+        for (long version = 1; version <= 5; version++) {
+            log.append(createMutation(version));
+        }
+
+        log.reset(7);
+        assertNull(log.since(5));
+        assertEquals(0, log.since(7).size());
+    }
+
+    public void testReplayOnCopyGivesEqualHash() {
+        GameState state = createGame(1);
+        GameState copy = state.copy();
+        makeChanges(state, new Random(1), 2000);
+
+        List<Mutation> mutations = state.getMutationsSince(copy.getVersion());
+        assertNotNull(mutations);
+        for (Mutation mutation : mutations) {
+            assertTrue("Replaying version " + mutation.getVersion(), copy.apply(mutation));
+        }
+
+        assertEquals(state.getVersion(), copy.getVersion());
+        assertEquals(state.getStateHash(), copy.getStateHash());
+        assertEquals(state.getMerkleNodes(new int[]{1})[0], copy.getMerkleNodes(new int[]{1})[0]);
+        assertEquals(state.getClaimedTreasureCount(), copy.getClaimedTreasureCount());
+    }
+
+    public void testReplayRejectsMissingChanges() {
+        GameState state = createGame(2);
+        GameState copy = state.copy();
+        makeChanges(state, new Random(2), 100);
+
+        List<Mutation> mutations = state.getMutationsSince(copy.getVersion());
+        assertFalse("A change applied out of order", copy.apply(mutations.get(1)));
+    }
+
+    public void testReplayRejectsForgedChanges() {
+        GameState state = createGame(3);
+        GameState copy = state.copy();
+
+        // player 0 keeps walking west until a wall or another player stops it
+        while (!state.processMove(new Move(Move.Direction.W, 0), null)) {
+            // moving on
+        }
+
+        // a move the rules forbid
+        GameState blocked = state.copy();
+        Mutation forbiddenMove = Mutation.createMove(0, Move.Direction.W, Move.NO_SEQUENCE);
+        forbiddenMove.setVersion(blocked.getVersion() + 1);
+        forbiddenMove.setStateHash(blocked.getStateHash());
+        assertFalse("A forbidden move was accepted", blocked.apply(forbiddenMove));
+
+        // a legal move that does not lead to the hash logged with it
+        List<Mutation> mutations = state.getMutationsSince(copy.getVersion());
+        assertFalse("Player 0 started against the wall", mutations.isEmpty());
+        Mutation first = mutations.get(0);
+        Mutation wrongHash = Mutation.createMove(0, Move.Direction.W, Move.NO_SEQUENCE);
+        wrongHash.setVersion(first.getVersion());
+        wrongHash.setStateHash(first.getStateHash() ^ 1);
+        assertFalse("A wrong hash was accepted", copy.apply(wrongHash));
+    }
+
+    static GameState createGame(long seed) {
+        GameState state = new GameState(20);
+        for (int i = 0; i < 30; i++) {
+            state.addPlayer(i == 0 ? PeerRole.PRIMARY_SERVER : i == 1 ? PeerRole.BACKUP_SERVER : PeerRole.NON_SERVER);
+        }
+
+        state.initRandom(40, new Random(seed));
+        state.setRunningState(RunningState.GAME_STARTED);
+        return state;
+    }
+
+    /**
+     * Make random moves, with the occasional status and role change as players die and servers
+     * are replaced.
+     */
+    static void makeChanges(GameState state, Random random, int count) {
+        Move.Direction[] directions = {Move.Direction.N, Move.Direction.S, Move.Direction.E, Move.Direction.W};
+        int playerCount = state.getPlayerList().size();
+        for (int i = 0; i < count; i++) {
+            int playerId = random.nextInt(playerCount);
+            switch (random.nextInt(50)) {
+                case 0:
+                    state.setPlayerStatus(playerId, false, PeerRole.DEAD);
+                    break;
+                case 1:
+                    state.setExclusiveRole(playerId, PeerRole.BACKUP_SERVER);
+                    state.setBackup(playerId, null);
+                    break;
+                default:
+                    state.processMove(new Move(directions[random.nextInt(directions.length)], playerId), null);
+                    break;
+            }
+        }
+    }
+
+    private static Mutation createMutation(long version) {
+        Mutation mutation = Mutation.createMove(0, Move.Direction.N, Move.NO_SEQUENCE);
+        mutation.setVersion(version);
+        return mutation;
+    }
+}
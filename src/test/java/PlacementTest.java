@@ -0,0 +1,60 @@
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests placing the players and treasures when the game starts.
+ *
+ * @author lpthanh
+ */
+public class PlacementTest extends TestCase {
+
+    public void testPlayersTakeDistinctFreeCells() {
+        // few players, but treasures cover most of the board
+        assertDistinctFreeCells(createGame(40, 10, 1500));
+
+        // many players on a board with few treasures
+        assertDistinctFreeCells(createGame(40, 1000, 100));
+    }
+
+    public void testTooManyPlayersFail() {
+        GameState state = new GameState(5);
+        for (int i = 0; i < 26; i++) {
+            state.addPlayer(PeerRole.NON_SERVER);
+        }
+
+        try {
+            state.initRandom(0, new Random(1));
+            fail("26 players placed on 25 cells");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static GameState createGame(int boardSize, int playerCount, int treasureCount) {
+        GameState state = new GameState(boardSize);
+        for (int i = 0; i < playerCount; i++) {
+            state.addPlayer(PeerRole.NON_SERVER);
+        }
+
+        state.initRandom(treasureCount, new Random(playerCount));
+        return state;
+    }
+
+    private static void assertDistinctFreeCells(GameState state) {
+        int boardSize = state.getBoardSize();
+        Set<Integer> treasureCells = new HashSet<>();
+        for (Treasure treasure : state.getTreasureList()) {
+            treasureCells.add(treasure.getPosY() * boardSize + treasure.getPosX());
+        }
+
+        Set<Integer> playerCells = new HashSet<>();
+        for (Player player : state.getPlayerList()) {
+            int cell = player.getPosY() * boardSize + player.getPosX();
+            assertTrue("Player " + player.getId() + " placed on a treasure", !treasureCells.contains(cell));
+            assertTrue("Two players on cell " + cell, playerCells.add(cell));
+        }
+    }
+}
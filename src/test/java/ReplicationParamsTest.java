@@ -0,0 +1,47 @@
+import junit.framework.TestCase;
+
+/**
+ * Tests parsing the replication mode given on the command line.
+ *
+ * @author lpthanh
+ */
+public class ReplicationParamsTest extends TestCase {
+
+    public void testValidModes() {
+        assertEquals(GameParams.ReplicationParams.Mode.SYNC, GameParams.ReplicationParams.parse(null).getMode());
+        assertEquals(GameParams.ReplicationParams.Mode.SYNC, GameParams.ReplicationParams.parse("sync").getMode());
+
+        GameParams.ReplicationParams async = GameParams.ReplicationParams.parse("async:0");
+        assertEquals(GameParams.ReplicationParams.Mode.BOUNDED_ASYNC, async.getMode());
+        assertEquals(0, async.getMaxLag());
+
+        GameParams.ReplicationParams group = GameParams.ReplicationParams.parse("group:5:16");
+        assertEquals(GameParams.ReplicationParams.Mode.GROUP_COMMIT, group.getMode());
+        assertEquals(5, group.getGroupWindowMillis());
+        assertEquals(16, group.getGroupBatchSize());
+    }
+
+    public void testOutOfRangeValuesFail() {
+        // a negative lag would hold every move forever, and an empty group would never be sent
+        assertInvalid("async:-1");
+        assertInvalid("group:0");
+        assertInvalid("group:-5");
+        assertInvalid("group:5:0");
+        assertInvalid("group:5:-16");
+    }
+
+    public void testMalformedValuesFail() {
+        assertInvalid("async:x");
+        assertInvalid("group:5:x");
+        assertInvalid("eventual");
+    }
+
+    private static void assertInvalid(String param) {
+        try {
+            GameParams.ReplicationParams.parse(param);
+            fail("Accepted " + param);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
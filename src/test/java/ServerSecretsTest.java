@@ -0,0 +1,99 @@
+import junit.framework.TestCase;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the server secrets, which the primary server reads on every request while players join.
+ *
+ * @author lpthanh
+ */
+public class ServerSecretsTest extends TestCase {
+
+    private static final int PLAYER_COUNT = 20000;
+
+    public void testAuthWhilePlayersJoin() throws InterruptedException {
+        ServerSecrets secrets = new ServerSecrets();
+        IPeer[] peers = new IPeer[PLAYER_COUNT];
+        for (int i = 0; i < PLAYER_COUNT; i++) {
+            peers[i] = createPeer();
+        }
+
+        secrets.register(0, 100, peers[0]);
+
+        // joining players keep growing the arrays while the latest of them is authenticated
+        AtomicInteger joined = new AtomicInteger(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread joiner = new Thread(() -> {
+            try {
+                for (int i = 1; i < PLAYER_COUNT; i++) {
+                    secrets.register(i, 100 + i, peers[i]);
+                    joined.set(i + 1);
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        joiner.start();
+
+        while (joiner.isAlive()) {
+            int playerId = joined.get() - 1;
+            assertTrue("Player " + playerId, secrets.auth(peers[playerId], playerId, 100 + playerId));
+        }
+
+        joiner.join();
+        assertNull(failure.get());
+        for (int i = 0; i < PLAYER_COUNT; i++) {
+            assertTrue("Player " + i, secrets.auth(peers[i], i, 100 + i));
+        }
+    }
+
+    public void testChangesReachAnotherCopy() {
+        ServerSecrets primary = new ServerSecrets();
+        ServerSecrets backup = new ServerSecrets();
+        IPeer first = createPeer();
+        IPeer second = createPeer();
+
+        primary.register(0, 1, first);
+        assertTrue(backup.apply(primary.getChangesSince(0)));
+        long version = primary.getVersion();
+
+        primary.register(1, 2, second);
+        primary.release(0);
+        assertTrue(backup.apply(primary.getChangesSince(version)));
+        assertNull(primary.getChangesSince(primary.getVersion()));
+
+        assertNull(backup.getPeer(0));
+        assertFalse(backup.auth(first, 0, 1));
+        assertTrue(backup.auth(second, 1, 2));
+        assertFalse("Wrong auth code", backup.auth(second, 1, 3));
+        assertFalse("Wrong peer", backup.auth(first, 1, 2));
+    }
+
+    public void testApplyWithMissingChangesFails() {
+        ServerSecrets primary = new ServerSecrets();
+        primary.register(0, 1, createPeer());
+        long version = primary.getVersion();
+        primary.register(1, 2, createPeer());
+
+        assertFalse(new ServerSecrets().apply(primary.getChangesSince(version)));
+    }
+
+    /**
+     * @return a peer that only answers hashCode and equals, which is all the secrets use
+     */
+    private static IPeer createPeer() {
+        return (IPeer) Proxy.newProxyInstance(IPeer.class.getClassLoader(), new Class<?>[]{IPeer.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,84 @@
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that the incrementally kept state hash matches the content of the game state, including
+ * across compaction.
+ *
+ * @author lpthanh
+ */
+public class StateHashTest extends TestCase {
+
+    public void testHashMatchesContent() {
+        GameState state = MutationLogTest.createGame(1);
+        MutationLogTest.makeChanges(state, new Random(1), 1000);
+
+        // a copy hashes its content from scratch
+        assertEquals(rootOf(state.copy()), state.getStateHash());
+        assertEquals(rootOf(state), state.getStateHash());
+        assertEquals(state.getStateHash(), state.snapshot().getStateHash());
+        assertEquals(rootOf(state), rootOf(state.snapshot()));
+    }
+
+    public void testHashDoesNotDependOnOrder() {
+        GameState state = MutationLogTest.createGame(2);
+        GameState first = state.copy();
+        GameState second = state.copy();
+
+        // moves of two players, made in a different order on each copy
+        Move one = findLegalMove(state, 0);
+        Move other = findLegalMove(state, state.getPlayerList().size() - 1);
+        assertFalse(first.processMove(one, null));
+        assertFalse(first.processMove(other, null));
+        assertFalse(second.processMove(other, null));
+        assertFalse(second.processMove(one, null));
+
+        assertEquals(first.getStateHash(), second.getStateHash());
+        assertTrue(first.getStateHash() != state.getStateHash());
+    }
+
+    public void testCompactThenReplayKeepsHashesEqual() {
+        GameState state = MutationLogTest.createGame(3);
+        GameState copy = state.copy();
+
+        MutationLogTest.makeChanges(state, new Random(3), 1000);
+        assertTrue("No treasure was claimed", state.getClaimedTreasureCount() > 0);
+        int removed = state.compact();
+        assertTrue(removed > 0);
+        assertEquals(rootOf(state.copy()), state.getStateHash());
+
+        MutationLogTest.makeChanges(state, new Random(4), 1000);
+
+        List<Mutation> mutations = state.getMutationsSince(copy.getVersion());
+        assertNotNull(mutations);
+        for (Mutation mutation : mutations) {
+            assertTrue("Replaying version " + mutation.getVersion(), copy.apply(mutation));
+        }
+
+        assertEquals(state.getVersion(), copy.getVersion());
+        assertEquals(state.getStateHash(), copy.getStateHash());
+        assertEquals(state.getTreasureList().size(), copy.getTreasureList().size());
+        assertEquals(removed, copy.getCompactedTreasureCount());
+        assertEquals(rootOf(state.copy()), copy.getStateHash());
+    }
+
+    private static long rootOf(GameState state) {
+        return state.getMerkleNodes(new int[]{1})[0];
+    }
+
+    /**
+     * @return a move of the player that is legal on the given state
+     */
+    private static Move findLegalMove(GameState state, int playerId) {
+        for (Move.Direction direction : new Move.Direction[]{Move.Direction.N, Move.Direction.S, Move.Direction.E, Move.Direction.W}) {
+            GameState trial = state.copy();
+            if (!trial.processMove(new Move(direction, playerId), null)) {
+                return new Move(direction, playerId);
+            }
+        }
+
+        throw new AssertionError("Player " + playerId + " cannot move");
+    }
+}
@@ -0,0 +1,115 @@
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests repairing a diverged copy of the game state by comparing Merkle trees, as the backup
+ * server does with the primary's.
+ *
+ * @author lpthanh
+ */
+public class StateRepairTest extends TestCase {
+
+    public void testRepairConvergesAfterSingleLeafDivergence() {
+        GameState primary = MutationLogTest.createGame(1);
+        MutationLogTest.makeChanges(primary, new Random(1), 500);
+        GameState replica = primary.copy();
+
+        // one player differs, e.g. after a lost update
+        replica.setPlayerStatus(5, false, PeerRole.DEAD);
+        assertTrue(primary.getStateHash() != replica.getStateHash());
+
+        GameState pinned = primary.snapshot();
+        int[] leaves = findDifferingLeaves(pinned, replica);
+        assertEquals(1, leaves.length);
+
+        StateRepair repair = pinned.createRepair(leaves);
+        assertTrue(replica.applyRepair(repair));
+        assertEquals(primary.getVersion(), replica.getVersion());
+        assertEquals(primary.getStateHash(), replica.getStateHash());
+        assertTrue(primary.searchById(5).isAlive());
+        assertTrue(replica.searchById(5).isAlive());
+
+        // the repaired copy follows the primary's changes again
+        long version = primary.getVersion();
+        MutationLogTest.makeChanges(primary, new Random(2), 500);
+        for (Mutation mutation : primary.getMutationsSince(version)) {
+            assertTrue("Replaying version " + mutation.getVersion(), replica.apply(mutation));
+        }
+
+        assertEquals(primary.getStateHash(), replica.getStateHash());
+    }
+
+    public void testRepairFromPinnedVersionWhilePrimaryMoves() {
+        GameState primary = MutationLogTest.createGame(3);
+        GameState replica = primary.copy();
+        replica.processMove(new Move(Move.Direction.N, 7), null);
+        replica.processMove(new Move(Move.Direction.W, 7), null);
+        assertTrue(primary.getStateHash() != replica.getStateHash());
+
+        // the comparison is pinned to one version while the primary keeps moving
+        GameState pinned = primary.snapshot();
+        MutationLogTest.makeChanges(primary, new Random(3), 500);
+
+        StateRepair repair = pinned.createRepair(findDifferingLeaves(pinned, replica));
+        assertTrue(replica.applyRepair(repair));
+        assertEquals(pinned.getVersion(), replica.getVersion());
+        assertEquals(pinned.getStateHash(), replica.getStateHash());
+
+        // then the changes made since the pinned version are pulled from the log
+        List<Mutation> mutations = primary.getMutationsSince(pinned.getVersion());
+        assertNotNull(mutations);
+        for (Mutation mutation : mutations) {
+            assertTrue("Replaying version " + mutation.getVersion(), replica.apply(mutation));
+        }
+
+        assertEquals(primary.getStateHash(), replica.getStateHash());
+    }
+
+    public void testRepairOfSomeDifferingLeavesFails() {
+        GameState primary = MutationLogTest.createGame(4);
+        GameState replica = primary.copy();
+        replica.setPlayerStatus(2, false, PeerRole.DEAD);
+        replica.setPlayerStatus(3, false, PeerRole.DEAD);
+
+        GameState pinned = primary.snapshot();
+        int[] leaves = findDifferingLeaves(pinned, replica);
+        assertEquals(2, leaves.length);
+
+        assertFalse(replica.applyRepair(pinned.createRepair(new int[]{leaves[0]})));
+    }
+
+    /**
+     * Walk down the Merkle trees from the root, descending only into the nodes that differ,
+     * as BackupServer.repairFromPrimary does.
+     */
+    private static int[] findDifferingLeaves(GameState primary, GameState replica) {
+        int[] nodes = {1};
+        int[] leaves = new int[GameState.MERKLE_LEAF_COUNT];
+        int leafCount = 0;
+        while (nodes.length > 0) {
+            long[] primaryHashes = primary.getMerkleNodes(nodes);
+            long[] replicaHashes = replica.getMerkleNodes(nodes);
+            int[] children = new int[2 * nodes.length];
+            int childCount = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                if (primaryHashes[i] == replicaHashes[i]) {
+                    continue;
+                }
+
+                if (nodes[i] >= GameState.MERKLE_LEAF_COUNT) {
+                    leaves[leafCount++] = nodes[i] - GameState.MERKLE_LEAF_COUNT;
+                } else {
+                    children[childCount++] = 2 * nodes[i];
+                    children[childCount++] = 2 * nodes[i] + 1;
+                }
+            }
+
+            nodes = Arrays.copyOf(children, childCount);
+        }
+
+        return Arrays.copyOf(leaves, leafCount);
+    }
+}